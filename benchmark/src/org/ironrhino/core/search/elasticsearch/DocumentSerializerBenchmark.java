@@ -0,0 +1,81 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableComponent;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableId;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableProperty;
+import org.ironrhino.core.search.elasticsearch.benchmark.Article;
+import org.ironrhino.core.util.AnnotationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// in this package for the object mapper shared with IndexManagerImpl
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DocumentSerializerBenchmark {
+
+	private ObjectMapper objectMapper;
+
+	private DocumentSerializer serializer;
+
+	private List<Article> articles;
+
+	private int cursor;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		objectMapper = IndexManagerImpl.createObjectMapper();
+		serializer = new DocumentSerializer(Article.class, objectMapper);
+		articles = Article.generate(1000);
+	}
+
+	private Article next() {
+		Article article = articles.get(cursor);
+		cursor = (cursor + 1) % articles.size();
+		return article;
+	}
+
+	@Benchmark
+	public byte[] serializer() throws Exception {
+		return serializer.serialize(next());
+	}
+
+	// document built before DocumentSerializer was introduced
+	@Benchmark
+	@SuppressWarnings("rawtypes")
+	public String legacy() throws Exception {
+		Map<String, Object> map = AnnotationUtils.getAnnotatedPropertyNameAndValues(next(), SearchableId.class,
+				SearchableProperty.class, SearchableComponent.class);
+		Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
+		while (it.hasNext()) {
+			Object value = it.next().getValue();
+			if (value == null || value instanceof String && StringUtils.isBlank((String) value)
+					|| value instanceof Collection && ((Collection) value).isEmpty()
+					|| value.getClass().isArray() && ((Object[]) value).length == 0)
+				it.remove();
+		}
+		return objectMapper.writeValueAsString(map);
+	}
+
+}
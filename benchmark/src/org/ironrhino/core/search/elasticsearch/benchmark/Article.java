@@ -0,0 +1,142 @@
+package org.ironrhino.core.search.elasticsearch.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ironrhino.core.model.Persistable;
+import org.ironrhino.core.search.elasticsearch.annotations.Index;
+import org.ironrhino.core.search.elasticsearch.annotations.Searchable;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableComponent;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableId;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableProperty;
+
+@Searchable
+public class Article implements Persistable<Long> {
+
+	private static final long serialVersionUID = 4906718423367592036L;
+
+	static final String[] WORDS = { "elastic", "search", "index", "shard", "replica", "bulk", "query", "filter",
+			"aggregation", "mapping", "routing", "partition", "cluster", "node", "segment", "merge", "refresh",
+			"flush", "translog", "analyzer" };
+
+	@SearchableId
+	private Long id;
+
+	@SearchableProperty(boost = 3)
+	private String title;
+
+	@SearchableProperty
+	private String content;
+
+	@SearchableProperty(index = Index.NOT_ANALYZED)
+	private Set<String> tags;
+
+	@SearchableComponent
+	private Author author;
+
+	@SearchableProperty
+	private int views;
+
+	@SearchableProperty
+	private Date createDate;
+
+	@Override
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	@Override
+	public boolean isNew() {
+		return id == null;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String title) {
+		this.title = title;
+	}
+
+	public String getContent() {
+		return content;
+	}
+
+	public void setContent(String content) {
+		this.content = content;
+	}
+
+	public Set<String> getTags() {
+		return tags;
+	}
+
+	public void setTags(Set<String> tags) {
+		this.tags = tags;
+	}
+
+	public Author getAuthor() {
+		return author;
+	}
+
+	public void setAuthor(Author author) {
+		this.author = author;
+	}
+
+	public int getViews() {
+		return views;
+	}
+
+	public void setViews(int views) {
+		this.views = views;
+	}
+
+	public Date getCreateDate() {
+		return createDate;
+	}
+
+	public void setCreateDate(Date createDate) {
+		this.createDate = createDate;
+	}
+
+	public static List<Article> generate(int count) {
+		// fixed seed keeps documents comparable across runs
+		Random random = new Random(count);
+		long now = System.currentTimeMillis();
+		List<Article> list = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Article article = new Article();
+			article.setId((long) i + 1);
+			article.setTitle(sentence(random, 3 + random.nextInt(5)));
+			article.setContent(sentence(random, 50 + random.nextInt(150)));
+			Set<String> tags = new LinkedHashSet<>();
+			for (int j = random.nextInt(4); j >= 0; j--)
+				tags.add(WORDS[random.nextInt(WORDS.length)]);
+			article.setTags(tags);
+			int author = random.nextInt(100);
+			article.setAuthor(new Author("user" + author, "User " + author));
+			article.setViews(random.nextInt(100000));
+			article.setCreateDate(new Date(now - random.nextInt(365) * 86400000L));
+			list.add(article);
+		}
+		return list;
+	}
+
+	static String sentence(Random random, int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,44 @@
+package org.ironrhino.core.search.elasticsearch.benchmark;
+
+import java.io.Serializable;
+
+import org.ironrhino.core.search.elasticsearch.annotations.Index;
+import org.ironrhino.core.search.elasticsearch.annotations.Searchable;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableProperty;
+
+@Searchable(root = false)
+public class Author implements Serializable {
+
+	private static final long serialVersionUID = -1946382958476393117L;
+
+	@SearchableProperty(index = Index.NOT_ANALYZED)
+	private String username;
+
+	@SearchableProperty
+	private String name;
+
+	public Author() {
+	}
+
+	public Author(String username, String name) {
+		this.username = username;
+		this.name = name;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+}
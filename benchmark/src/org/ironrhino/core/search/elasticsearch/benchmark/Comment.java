@@ -0,0 +1,100 @@
+package org.ironrhino.core.search.elasticsearch.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.ironrhino.core.model.Persistable;
+import org.ironrhino.core.search.elasticsearch.annotations.Index;
+import org.ironrhino.core.search.elasticsearch.annotations.Searchable;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableId;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchablePartition;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableProperty;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableRouting;
+
+@Searchable
+@SearchablePartition(interval = SearchablePartition.Interval.MONTH)
+public class Comment implements Persistable<Long> {
+
+	private static final long serialVersionUID = -3154282716330526372L;
+
+	@SearchableId
+	private Long id;
+
+	@SearchableRouting
+	@SearchableProperty(index = Index.NOT_ANALYZED)
+	private Long articleId;
+
+	@SearchableProperty
+	private String content;
+
+	@SearchableProperty(index = Index.NOT_ANALYZED)
+	private String username;
+
+	@SearchableProperty
+	private Date createDate;
+
+	@Override
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	@Override
+	public boolean isNew() {
+		return id == null;
+	}
+
+	public Long getArticleId() {
+		return articleId;
+	}
+
+	public void setArticleId(Long articleId) {
+		this.articleId = articleId;
+	}
+
+	public String getContent() {
+		return content;
+	}
+
+	public void setContent(String content) {
+		this.content = content;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	public Date getCreateDate() {
+		return createDate;
+	}
+
+	public void setCreateDate(Date createDate) {
+		this.createDate = createDate;
+	}
+
+	public static List<Comment> generate(int count, int articles) {
+		Random random = new Random(count);
+		long now = System.currentTimeMillis();
+		List<Comment> list = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Comment comment = new Comment();
+			comment.setId((long) i + 1);
+			comment.setArticleId((long) random.nextInt(articles) + 1);
+			comment.setContent(Article.sentence(random, 5 + random.nextInt(30)));
+			comment.setUsername("user" + random.nextInt(100));
+			comment.setCreateDate(new Date(now - random.nextInt(90) * 86400000L));
+			list.add(comment);
+		}
+		return list;
+	}
+
+}
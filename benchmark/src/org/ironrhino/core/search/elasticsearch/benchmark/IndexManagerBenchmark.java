@@ -0,0 +1,107 @@
+package org.ironrhino.core.search.elasticsearch.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.search.SearchHit;
+import org.ironrhino.core.model.Persistable;
+import org.ironrhino.core.search.elasticsearch.IndexManager;
+import org.ironrhino.core.search.elasticsearch.IndexOperation;
+import org.ironrhino.core.search.elasticsearch.IndexingSummary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexManagerBenchmark {
+
+	// comment is routed and partitioned
+	@Param({ "article", "comment" })
+	public String type;
+
+	@Param({ "10000" })
+	public int documents;
+
+	private SearchEnvironment environment;
+
+	private IndexManager indexManager;
+
+	private List<? extends Persistable<?>> entities;
+
+	private SearchHit[] hits;
+
+	private int cursor;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		environment = new SearchEnvironment();
+		if ("article".equals(type)) {
+			List<Article> articles = Article.generate(documents);
+			environment.setEntities(Article.class, articles);
+			entities = articles;
+		} else {
+			List<Comment> comments = Comment.generate(documents, Math.max(1, documents / 10));
+			environment.setEntities(Comment.class, comments);
+			entities = comments;
+		}
+		indexManager = environment.getIndexManager();
+		indexManager.indexAll(type);
+		environment.refresh();
+		hits = environment.getClient().prepareSearch(indexManager.determineIndexName(type)).setTypes(type)
+				.setSize(100).get().getHits().getHits();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		environment.close();
+	}
+
+	private Persistable<?> next() {
+		Persistable<?> entity = entities.get(cursor);
+		cursor = (cursor + 1) % entities.size();
+		return entity;
+	}
+
+	// serialization with routing and partition resolved, as prepared for every write
+	@Benchmark
+	public IndexOperation entityToDocument() {
+		return indexManager.prepareIndex(next());
+	}
+
+	@Benchmark
+	public Object searchHitToEntity() throws Exception {
+		return indexManager.searchHitToEntity(hits[cursor++ % hits.length]);
+	}
+
+	@Benchmark
+	public IndexResponse index() {
+		return indexManager.index(next()).actionGet();
+	}
+
+	// documents divided by score is the bulk throughput
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public IndexingSummary indexAll() {
+		return indexManager.indexAll(type);
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.ironrhino.core.search.elasticsearch.benchmark;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.ironrhino.core.model.ResultPage;
+import org.ironrhino.core.search.elasticsearch.ElasticSearchCriteria;
+import org.ironrhino.core.search.elasticsearch.ElasticSearchService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+	@Param({ "100000" })
+	public int documents;
+
+	private SearchEnvironment environment;
+
+	private ElasticSearchService<Article> searchService;
+
+	private final Random random = new Random(0);
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		environment = new SearchEnvironment();
+		environment.setEntities(Article.class, Article.generate(documents));
+		environment.getIndexManager().indexAll("article");
+		environment.refresh();
+		searchService = environment.getSearchService();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		environment.close();
+	}
+
+	private ElasticSearchCriteria criteria() {
+		ElasticSearchCriteria criteria = new ElasticSearchCriteria();
+		criteria.setQuery("title:" + Article.WORDS[random.nextInt(Article.WORDS.length)]);
+		criteria.setTypes("article");
+		return criteria;
+	}
+
+	@Benchmark
+	public ResultPage<Article> search(Paging paging) {
+		ResultPage<Article> resultPage = new ResultPage<>();
+		resultPage.setPageSize(paging.pageSize);
+		resultPage.setCriteria(criteria());
+		return searchService.search(resultPage);
+	}
+
+	@Benchmark
+	public Map<String, Integer> countTermsByField() {
+		return searchService.countTermsByField(criteria(), "tags");
+	}
+
+	@State(Scope.Benchmark)
+	public static class Paging {
+
+		@Param({ "10", "100", "1000" })
+		public int pageSize;
+
+	}
+
+}
@@ -0,0 +1,183 @@
+package org.ironrhino.core.search.elasticsearch.benchmark;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.node.InternalSettingsPreparer;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.plugin.analysis.mmseg.AnalysisMMsegPlugin;
+import org.ironrhino.core.coordination.LockService;
+import org.ironrhino.core.model.Persistable;
+import org.ironrhino.core.search.elasticsearch.DirtyPropertyTracker;
+import org.ironrhino.core.search.elasticsearch.ElasticSearchService;
+import org.ironrhino.core.search.elasticsearch.IndexManager;
+import org.ironrhino.core.search.elasticsearch.IndexManagerImpl;
+import org.ironrhino.core.search.elasticsearch.IndexOutbox;
+import org.ironrhino.core.search.elasticsearch.IndexWriteBehindQueue;
+import org.ironrhino.core.search.elasticsearch.QueryCompiler;
+import org.ironrhino.core.search.elasticsearch.SearchMetrics;
+import org.ironrhino.core.search.elasticsearch.SearchResultCache;
+import org.ironrhino.core.service.BaseManager.IterateCallback;
+import org.ironrhino.core.service.EntityManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InjectionPoint;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Scope;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+// embedded node and search beans wired without database, entities are served from memory
+@SuppressWarnings({ "unchecked", "rawtypes" })
+public class SearchEnvironment implements AutoCloseable {
+
+	private final File home;
+
+	private final Node node;
+
+	private final AnnotationConfigApplicationContext ctx;
+
+	private final Map<Class<?>, List<? extends Persistable<?>>> entities = new ConcurrentHashMap<>();
+
+	public SearchEnvironment() throws Exception {
+		home = Files.createTempDirectory("search-benchmark").toFile();
+		// same as embedded node of ElasticSearchClientFactoryBean
+		Map<String, String> nodeSettings = new HashMap<>();
+		nodeSettings.put("transport.type", "local");
+		nodeSettings.put("http.enabled", String.valueOf(false));
+		nodeSettings.put("path.home", home.getAbsolutePath().replace('\\', '/'));
+		nodeSettings.put("node.name", "benchmark");
+		nodeSettings.put("cluster.name", "benchmark");
+		nodeSettings.put("thread_pool.bulk.queue_size", "1000");
+		Constructor<Node> ctor = Node.class.getDeclaredConstructor(Environment.class, Collection.class);
+		ctor.setAccessible(true);
+		node = ctor.newInstance(
+				InternalSettingsPreparer.prepareEnvironment(Settings.builder().put(nodeSettings).build(), null),
+				Collections.singleton(AnalysisMMsegPlugin.class));
+		node.start();
+		Client client = node.client();
+
+		ctx = new AnnotationConfigApplicationContext();
+		// system properties such as -Delasticsearch.bulk.actions=5000 take precedence
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("elasticsearch.metrics.enabled", "false");
+		ctx.getEnvironment().getPropertySources().addLast(new MapPropertySource("benchmark", properties));
+		ctx.registerBean(PropertySourcesPlaceholderConfigurer.class);
+		ctx.registerBean(Client.class, () -> client);
+		ctx.registerBean(LockService.class, SearchEnvironment::lockService);
+		ctx.registerBean(EntityManager.class, this::entityManager);
+		ctx.register(LoggerConfiguration.class, IndexManagerImpl.class, ElasticSearchService.class,
+				QueryCompiler.class, SearchResultCache.class, SearchMetrics.class, IndexOutbox.class,
+				IndexWriteBehindQueue.class, DirtyPropertyTracker.class);
+		ctx.refresh();
+	}
+
+	public <T extends Persistable<?>> void setEntities(Class<T> entityClass, List<T> list) {
+		entities.put(entityClass, list);
+	}
+
+	public Client getClient() {
+		return node.client();
+	}
+
+	public IndexManager getIndexManager() {
+		return ctx.getBean(IndexManager.class);
+	}
+
+	public <T> ElasticSearchService<T> getSearchService() {
+		return ctx.getBean(ElasticSearchService.class);
+	}
+
+	public void refresh() {
+		getClient().admin().indices().prepareRefresh().get();
+	}
+
+	@Override
+	public void close() throws Exception {
+		try {
+			ctx.close();
+			node.close();
+		} finally {
+			FileSystemUtils.deleteRecursively(home);
+		}
+	}
+
+	private static LockService lockService() {
+		return new LockService() {
+
+			@Override
+			public boolean tryLock(String name) {
+				return true;
+			}
+
+			@Override
+			public void unlock(String name) {
+			}
+
+		};
+	}
+
+	private EntityManager entityManager() {
+		ThreadLocal<Class<?>> entityClass = new ThreadLocal<>();
+		return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { EntityManager.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "setEntityClass":
+						entityClass.set((Class<?>) args[0]);
+						return null;
+					case "getEntityClass":
+						return entityClass.get();
+					case "countAll":
+						return (long) list(entityClass.get()).size();
+					case "iterate":
+						// criteria are ignored, only full iteration is benchmarked
+						int fetchSize = (Integer) args[0];
+						IterateCallback callback = (IterateCallback) args[1];
+						List<?> list = list(entityClass.get());
+						for (int i = 0; i < list.size(); i += fetchSize)
+							callback.process(list.subList(i, Math.min(i + fetchSize, list.size())).toArray(), null);
+						return (long) list.size();
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return "EntityManager of " + entityClass.get();
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private List<?> list(Class<?> entityClass) {
+		List<?> list = entityClass != null ? entities.get(entityClass) : null;
+		return list != null ? list : Collections.emptyList();
+	}
+
+	@Configuration
+	static class LoggerConfiguration {
+
+		@Bean
+		@Scope(BeanDefinition.SCOPE_PROTOTYPE)
+		public Logger logger(InjectionPoint injectionPoint) {
+			return LoggerFactory.getLogger(injectionPoint.getMember().getDeclaringClass());
+		}
+
+	}
+
+}
@@ -0,0 +1,413 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.node.NodeClosedException;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class BulkIndexer implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkIndexer.class);
+
+	private static final int CONCURRENCY_INCREASE_INTERVAL = 8;
+
+	private final Client client;
+
+	private final int bulkActions;
+
+	private final int maxConcurrency;
+
+	private final long minBulkSize;
+
+	private final long maxBulkSize;
+
+	private volatile long bulkSize;
+
+	private final Object gate = new Object();
+
+	private int concurrency;
+
+	private int inFlight;
+
+	private int draining;
+
+	private int pendingRetries;
+
+	private int successes;
+
+	private boolean adaptive;
+
+	private long targetLatency = 1000;
+
+	private int maxRetries;
+
+	private long retryBackoff = 200;
+
+	private long maxRetryBackoff = 30000;
+
+	private final AtomicLong indexed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final AtomicLong bulks = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong retried = new AtomicLong();
+
+	private final AtomicLong conflicted = new AtomicLong();
+
+	private BulkRequest bulkRequest = new BulkRequest();
+
+	private Consumer<DocWriteRequest> failedRequestHandler;
+
+	private SearchMetrics metrics;
+
+	private ScheduledExecutorService retryScheduler;
+
+	private volatile boolean closed;
+
+	public BulkIndexer(Client client, int bulkActions, long bulkSize, int concurrency) {
+		if (bulkActions < 1)
+			throw new IllegalArgumentException("bulkActions should be positive");
+		if (concurrency < 1)
+			throw new IllegalArgumentException("concurrency should be positive");
+		this.client = client;
+		this.bulkActions = bulkActions;
+		this.bulkSize = bulkSize;
+		this.minBulkSize = bulkSize / 16;
+		this.maxBulkSize = bulkSize * 4;
+		this.maxConcurrency = concurrency;
+		this.concurrency = concurrency;
+	}
+
+	public void setFailedRequestHandler(Consumer<DocWriteRequest> failedRequestHandler) {
+		this.failedRequestHandler = failedRequestHandler;
+	}
+
+	public void setMetrics(SearchMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive && bulkSize > 0;
+	}
+
+	public void setTargetLatency(long targetLatency) {
+		this.targetLatency = targetLatency;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public void setRetryBackoff(long retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	public void setMaxRetryBackoff(long maxRetryBackoff) {
+		this.maxRetryBackoff = maxRetryBackoff;
+	}
+
+	public void add(DocWriteRequest request) {
+		BulkRequest toExecute = null;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("BulkIndexer is closed");
+			bulkRequest.add(request);
+			long size = bulkSize;
+			// bulkActions is the upper bound, adaptive mode tunes only bulk size and concurrency below it
+			if (bulkRequest.numberOfActions() >= bulkActions
+					|| size > 0 && bulkRequest.estimatedSizeInBytes() >= size) {
+				toExecute = bulkRequest;
+				bulkRequest = new BulkRequest();
+			}
+		}
+		if (toExecute != null)
+			execute(toExecute, 0);
+	}
+
+	public void flush() {
+		BulkRequest toExecute = null;
+		synchronized (this) {
+			if (bulkRequest.numberOfActions() > 0) {
+				toExecute = bulkRequest;
+				bulkRequest = new BulkRequest();
+			}
+		}
+		if (toExecute != null)
+			execute(toExecute, 0);
+	}
+
+	public void drain() {
+		flush();
+		synchronized (gate) {
+			draining++;
+			try {
+				while (inFlight > 0 || pendingRetries > 0)
+					gate.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				draining--;
+				gate.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		drain();
+		synchronized (gate) {
+			if (retryScheduler != null)
+				retryScheduler.shutdown();
+		}
+	}
+
+	public long getIndexed() {
+		return indexed.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getRetried() {
+		return retried.get();
+	}
+
+	public long getConflicted() {
+		return conflicted.get();
+	}
+
+	public long getBulks() {
+		return bulks.get();
+	}
+
+	public long getBulkSize() {
+		return bulkSize;
+	}
+
+	public int getConcurrency() {
+		synchronized (gate) {
+			return concurrency;
+		}
+	}
+
+	public int getInFlight() {
+		synchronized (gate) {
+			return inFlight;
+		}
+	}
+
+	private boolean acquire(boolean retry) {
+		synchronized (gate) {
+			try {
+				while (inFlight >= concurrency || !retry && draining > 0)
+					gate.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			inFlight++;
+			return true;
+		}
+	}
+
+	private void release() {
+		synchronized (gate) {
+			inFlight--;
+			gate.notifyAll();
+		}
+	}
+
+	private void execute(BulkRequest request, int attempt) {
+		int actions = request.numberOfActions();
+		if (!acquire(attempt > 0)) {
+			failed.addAndGet(actions);
+			logger.error("Interrupted before sending bulk request of {} actions", actions);
+			for (DocWriteRequest r : request.requests())
+				handleFailedRequest(r);
+			return;
+		}
+		bulks.incrementAndGet();
+		long bytes = request.estimatedSizeInBytes();
+		long start = System.nanoTime();
+		ActionListener<BulkResponse> listener = new ActionListener<BulkResponse>() {
+			@Override
+			public void onResponse(BulkResponse response) {
+				try {
+					long nanos = System.nanoTime() - start;
+					if (!response.hasFailures()) {
+						indexed.addAndGet(actions);
+						record(actions, bytes, 0, nanos);
+						adjust(nanos, false);
+						return;
+					}
+					int failures = 0;
+					int rejections = 0;
+					int conflicts = 0;
+					List<DocWriteRequest> retries = new ArrayList<>();
+					for (BulkItemResponse item : response.getItems()) {
+						if (!item.isFailed())
+							continue;
+						DocWriteRequest r = request.requests().get(item.getItemId());
+						RestStatus status = item.getFailure().getStatus();
+						// conditional writes lost to a newer write, nothing to retry
+						if (status == RestStatus.CONFLICT) {
+							conflicts++;
+							continue;
+						}
+						if (status == RestStatus.TOO_MANY_REQUESTS)
+							rejections++;
+						if ((status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE)
+								&& attempt < maxRetries) {
+							retries.add(r);
+						} else {
+							failures++;
+							handleFailedRequest(r);
+						}
+					}
+					rejected.addAndGet(rejections);
+					failed.addAndGet(failures);
+					conflicted.addAndGet(conflicts);
+					indexed.addAndGet(actions - failures - conflicts - retries.size());
+					if (failures > 0)
+						logger.error(response.buildFailureMessage());
+					record(actions, bytes, failures + retries.size(), nanos);
+					adjust(nanos, rejections > 0);
+					if (!retries.isEmpty())
+						retry(retries, attempt + 1);
+				} finally {
+					release();
+				}
+			}
+
+			@Override
+			public void onFailure(Exception e) {
+				try {
+					long nanos = System.nanoTime() - start;
+					Throwable cause = ExceptionsHelper.unwrapCause(e);
+					boolean rejection = cause instanceof EsRejectedExecutionException;
+					if (rejection)
+						rejected.addAndGet(actions);
+					record(actions, bytes, actions, nanos);
+					adjust(nanos, rejection);
+					if (attempt < maxRetries && (rejection || cause instanceof NoNodeAvailableException
+							|| cause instanceof NodeClosedException || cause instanceof ConnectTransportException)) {
+						logger.warn("Bulk request of {} actions failed, retrying: {}", actions, e.getMessage());
+						retry(request.requests(), attempt + 1);
+					} else {
+						failed.addAndGet(actions);
+						logger.error(e.getMessage(), e);
+						for (DocWriteRequest r : request.requests())
+							handleFailedRequest(r);
+					}
+				} finally {
+					release();
+				}
+			}
+		};
+		try {
+			client.bulk(request, listener);
+		} catch (RuntimeException e) {
+			listener.onFailure(e);
+		}
+	}
+
+	private void retry(List<DocWriteRequest> requests, int attempt) {
+		long delay = Math.min(maxRetryBackoff, retryBackoff << Math.min(attempt - 1, 20));
+		retried.addAndGet(requests.size());
+		synchronized (gate) {
+			pendingRetries++;
+			if (retryScheduler == null)
+				retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "bulk-indexer-retry");
+					t.setDaemon(true);
+					return t;
+				});
+		}
+		retryScheduler.schedule(() -> {
+			try {
+				BulkRequest request = new BulkRequest();
+				for (DocWriteRequest r : requests)
+					request.add(r);
+				execute(request, attempt);
+			} finally {
+				synchronized (gate) {
+					pendingRetries--;
+					gate.notifyAll();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void adjust(long nanos, boolean pressure) {
+		if (!adaptive)
+			return;
+		long latency = TimeUnit.NANOSECONDS.toMillis(nanos);
+		synchronized (gate) {
+			if (pressure) {
+				bulkSize = Math.max(minBulkSize, bulkSize / 2);
+				if (concurrency > 1)
+					concurrency--;
+				successes = 0;
+				logger.info("Bulk rejected, shrinking bulk size to {} bytes and concurrency to {}", bulkSize,
+						concurrency);
+			} else if (latency > targetLatency) {
+				bulkSize = Math.max(minBulkSize, bulkSize * 3 / 4);
+				successes = 0;
+			} else if (latency < targetLatency / 2) {
+				bulkSize = Math.min(maxBulkSize, bulkSize + maxBulkSize / 16);
+				if (++successes >= CONCURRENCY_INCREASE_INTERVAL && concurrency < maxConcurrency) {
+					concurrency++;
+					successes = 0;
+					gate.notifyAll();
+				}
+			}
+		}
+	}
+
+	private void record(int actions, long bytes, int failures, long nanos) {
+		if (metrics != null)
+			metrics.recordBulk(actions, bytes, failures, nanos);
+	}
+
+	private void handleFailedRequest(DocWriteRequest request) {
+		if (failedRequestHandler == null)
+			return;
+		try {
+			failedRequestHandler.accept(request);
+		} catch (RuntimeException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.io.Serializable;
+
+public class ConsistencyReport implements Serializable {
+
+	private static final long serialVersionUID = -5710326689218734017L;
+
+	private final String type;
+
+	private final boolean repair;
+
+	long checked;
+
+	long scanned;
+
+	long missing;
+
+	long stale;
+
+	long unverified;
+
+	long orphaned;
+
+	long failed;
+
+	long tookInMillis;
+
+	ConsistencyReport(String type, boolean repair) {
+		this.type = type;
+		this.repair = repair;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public boolean isRepair() {
+		return repair;
+	}
+
+	public long getChecked() {
+		return checked;
+	}
+
+	public long getScanned() {
+		return scanned;
+	}
+
+	public long getMissing() {
+		return missing;
+	}
+
+	public long getStale() {
+		return stale;
+	}
+
+	public long getUnverified() {
+		return unverified;
+	}
+
+	public long getOrphaned() {
+		return orphaned;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public long getTookInMillis() {
+		return tookInMillis;
+	}
+
+	public long getDrifted() {
+		return missing + stale + orphaned;
+	}
+
+	public double getDriftRate() {
+		long total = Math.max(checked, scanned);
+		return total > 0 ? getDrifted() * 100.0 / total : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: checked %d, scanned %d, missing %d, stale %d, unverified %d, orphaned %d (%.2f%%)%s in %d ms",
+				type, checked, scanned, missing, stale, unverified, orphaned, getDriftRate(),
+				repair ? ", repair failed " + failed : "", tookInMillis);
+	}
+
+}
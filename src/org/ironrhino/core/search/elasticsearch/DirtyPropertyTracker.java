@@ -0,0 +1,230 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.ironrhino.core.search.elasticsearch.annotations.Searchable;
+import org.ironrhino.core.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+@Component
+public class DirtyPropertyTracker implements PostUpdateEventListener, PostInsertEventListener {
+
+	private static final long serialVersionUID = 2862157480369817532L;
+
+	@Autowired
+	private transient Logger logger;
+
+	@Autowired(required = false)
+	private transient SessionFactory sessionFactory;
+
+	@Value("${elasticsearch.partialUpdate.enabled:false}")
+	private boolean enabled;
+
+	@PostConstruct
+	public void init() {
+		if (sessionFactory == null) {
+			if (enabled)
+				logger.warn("No SessionFactory found, partial update is disabled");
+			enabled = false;
+			return;
+		}
+		// loaded state is tracked regardless of partial update for relocating routed or partitioned documents
+		EventListenerRegistry registry = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry()
+				.getService(EventListenerRegistry.class);
+		registry.appendListeners(EventType.POST_UPDATE, this);
+		registry.appendListeners(EventType.POST_INSERT, this);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	// null means the entity should be fully indexed
+	public Set<String> getDirtyProperties(Object entity) {
+		if (!enabled)
+			return null;
+		Tracked tracked = getTracked(entity);
+		if (tracked != null && (tracked.inserted || tracked.dirty == null))
+			return null;
+		EntityEntry entry = getEntry(entity);
+		if (entry == null || entry.getLoadedState() == null || !entry.isExistsInDatabase())
+			return null;
+		Set<String> properties = new HashSet<>();
+		if (tracked != null)
+			properties.addAll(tracked.dirty);
+		// changes not flushed yet
+		EntityPersister persister = entry.getPersister();
+		int[] dirty = persister.findDirty(persister.getPropertyValues(entity), entry.getLoadedState(), entity,
+				getSession());
+		if (dirty != null)
+			for (int i : dirty)
+				properties.add(persister.getPropertyNames()[i]);
+		return properties;
+	}
+
+	// names of persistent properties including the identifier, null if the class is not mapped
+	public Set<String> getPersistentProperties(Class<?> clazz) {
+		if (sessionFactory == null)
+			return null;
+		EntityPersister persister;
+		try {
+			persister = ((SessionFactoryImplementor) sessionFactory).getMetamodel().entityPersister(clazz);
+		} catch (MappingException e) {
+			return null;
+		}
+		Set<String> names = new HashSet<>(Arrays.asList(persister.getPropertyNames()));
+		if (persister.getIdentifierPropertyName() != null)
+			names.add(persister.getIdentifierPropertyName());
+		return names;
+	}
+
+	// values of properties before current transaction, null if unknown or the entity is new
+	public Map<String, Object> getLoadedValues(Object entity, Collection<String> names) {
+		if (sessionFactory == null)
+			return null;
+		Tracked tracked = getTracked(entity);
+		if (tracked != null && tracked.inserted)
+			return null;
+		EntityEntry entry = getEntry(entity);
+		if (entry == null || !entry.isExistsInDatabase())
+			return null;
+		Object[] state = tracked != null && tracked.loadedState != null ? tracked.loadedState
+				: entry.getLoadedState();
+		if (state == null)
+			return null;
+		String[] propertyNames = entry.getPersister().getPropertyNames();
+		Map<String, Object> values = new HashMap<>();
+		for (int i = 0; i < propertyNames.length; i++)
+			if (names.contains(propertyNames[i]))
+				values.put(propertyNames[i], state[i]);
+		return values.size() == names.size() ? values : null;
+	}
+
+	@Override
+	public void onPostUpdate(PostUpdateEvent event) {
+		if (!isSearchable(event.getEntity()))
+			return;
+		Map<Object, Tracked> map = getTrackedMap(true);
+		if (map == null)
+			return;
+		Tracked tracked = map.computeIfAbsent(event.getEntity(), k -> new Tracked());
+		// state at the first flush is the state before current transaction
+		if (tracked.loadedState == null && event.getOldState() != null)
+			tracked.loadedState = event.getOldState().clone();
+		int[] dirty = event.getDirtyProperties();
+		if (dirty == null) {
+			// dirty properties are unknown without select-before-update or dynamic-update
+			tracked.dirty = null;
+			return;
+		}
+		if (tracked.dirty == null)
+			return;
+		String[] names = event.getPersister().getPropertyNames();
+		for (int i : dirty)
+			tracked.dirty.add(names[i]);
+	}
+
+	@Override
+	public void onPostInsert(PostInsertEvent event) {
+		if (!isSearchable(event.getEntity()))
+			return;
+		Map<Object, Tracked> map = getTrackedMap(true);
+		if (map != null)
+			map.computeIfAbsent(event.getEntity(), k -> new Tracked()).inserted = true;
+	}
+
+	@Override
+	public boolean requiresPostCommitHanding(EntityPersister persister) {
+		return false;
+	}
+
+	private static boolean isSearchable(Object entity) {
+		return ReflectionUtils.getActualClass(entity).getAnnotation(Searchable.class) != null;
+	}
+
+	private SessionImplementor getSession() {
+		try {
+			return (SessionImplementor) sessionFactory.getCurrentSession();
+		} catch (HibernateException e) {
+			return null;
+		}
+	}
+
+	private EntityEntry getEntry(Object entity) {
+		SessionImplementor session = getSession();
+		return session != null ? session.getPersistenceContext().getEntry(entity) : null;
+	}
+
+	private Tracked getTracked(Object entity) {
+		Map<Object, Tracked> map = getTrackedMap(false);
+		return map != null ? map.get(entity) : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<Object, Tracked> getTrackedMap(boolean create) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+			return null;
+		Map<Object, Tracked> map = (Map<Object, Tracked>) TransactionSynchronizationManager.getResource(this);
+		if (map == null && create) {
+			Map<Object, Tracked> tracked = Collections.synchronizedMap(new IdentityHashMap<>());
+			map = tracked;
+			TransactionSynchronizationManager.bindResource(this, map);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				// state tracked in a suspended transaction must not be seen by the inner one
+				@Override
+				public void suspend() {
+					TransactionSynchronizationManager.unbindResourceIfPossible(DirtyPropertyTracker.this);
+				}
+
+				@Override
+				public void resume() {
+					TransactionSynchronizationManager.bindResource(DirtyPropertyTracker.this, tracked);
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(DirtyPropertyTracker.this);
+				}
+			});
+		}
+		return map;
+	}
+
+	private static class Tracked {
+
+		Set<String> dirty = new HashSet<>();
+
+		Object[] loadedState;
+
+		boolean inserted;
+
+	}
+
+}
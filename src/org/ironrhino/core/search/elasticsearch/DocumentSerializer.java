@@ -0,0 +1,205 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableComponent;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableId;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableProperty;
+import org.springframework.beans.BeanUtils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+public class DocumentSerializer {
+
+	private final ObjectWriter objectWriter;
+
+	private final Property[] properties;
+
+	private final Set<String> components = new HashSet<>();
+
+	private boolean partiallyUpdatable = true;
+
+	public DocumentSerializer(Class<?> clazz, ObjectMapper objectMapper) {
+		this.objectWriter = objectMapper.writer();
+		Map<String, PropertyDescriptor> descriptors = new LinkedHashMap<>();
+		for (PropertyDescriptor pd : BeanUtils.getPropertyDescriptors(clazz)) {
+			Method m = pd.getReadMethod();
+			if (m == null)
+				continue;
+			Field f = findField(clazz, pd.getName());
+			if (isAnnotated(m, f)) {
+				descriptors.put(pd.getName(), pd);
+				if (m.getAnnotation(SearchableComponent.class) != null
+						|| f != null && f.getAnnotation(SearchableComponent.class) != null)
+					components.add(pd.getName());
+				// changes of collections are not reported as dirty properties of the owner
+				if (Collection.class.isAssignableFrom(pd.getPropertyType())
+						|| Map.class.isAssignableFrom(pd.getPropertyType()))
+					partiallyUpdatable = false;
+			}
+		}
+		// keep the field order of the HashMap based document built by AnnotationUtils and written by the mapper
+		Map<String, PropertyDescriptor> ordered;
+		if (objectMapper.getSerializationConfig().isEnabled(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)) {
+			ordered = new TreeMap<>(descriptors);
+		} else {
+			// filled one by one as AnnotationUtils does, presizing would change the capacity thus the order
+			Map<String, PropertyDescriptor> legacy = new HashMap<>();
+			for (Map.Entry<String, PropertyDescriptor> entry : descriptors.entrySet())
+				legacy.put(entry.getKey(), entry.getValue());
+			ordered = new LinkedHashMap<>(legacy);
+		}
+		List<Property> list = new ArrayList<>(ordered.size());
+		for (PropertyDescriptor pd : ordered.values())
+			list.add(new Property(pd.getName(), pd.getReadMethod()));
+		this.properties = list.toArray(new Property[list.size()]);
+	}
+
+	public byte[] serialize(Object entity) throws IOException {
+		return objectWriter.writeValueAsBytes(new Document(entity, null));
+	}
+
+	public byte[] serialize(Object entity, Collection<String> names) throws IOException {
+		return objectWriter.writeValueAsBytes(new Document(entity, names));
+	}
+
+	public Set<String> getPropertyNames() {
+		Set<String> names = new HashSet<>();
+		for (Property p : properties)
+			names.add(p.name);
+		return names;
+	}
+
+	public boolean hasProperty(String name) {
+		for (Property p : properties)
+			if (p.name.equals(name))
+				return true;
+		return false;
+	}
+
+	public boolean isComponent(String name) {
+		return components.contains(name);
+	}
+
+	public boolean isPartiallyUpdatable() {
+		return partiallyUpdatable;
+	}
+
+	private static boolean isAnnotated(Method m, Field f) {
+		for (Class<? extends Annotation> annotation : ANNOTATIONS) {
+			if (m.getAnnotation(annotation) != null)
+				return true;
+			if (f != null && f.getAnnotation(annotation) != null)
+				return true;
+		}
+		return false;
+	}
+
+	private static Field findField(Class<?> clazz, String name) {
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+			try {
+				return c.getDeclaredField(name);
+			} catch (NoSuchFieldException e) {
+			}
+		}
+		return null;
+	}
+
+	static boolean isEmptyValue(Object value) {
+		return value == null || value instanceof String && StringUtils.isBlank((String) value)
+				|| value instanceof Collection && ((Collection<?>) value).isEmpty()
+				|| value.getClass().isArray() && Array.getLength(value) == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static final Class<? extends Annotation>[] ANNOTATIONS = new Class[] { SearchableId.class,
+			SearchableProperty.class, SearchableComponent.class };
+
+	private class Document implements JsonSerializable {
+
+		private final Object entity;
+
+		private final Collection<String> names;
+
+		Document(Object entity, Collection<String> names) {
+			this.entity = entity;
+			this.names = names;
+		}
+
+		@Override
+		public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+			gen.writeStartObject();
+			for (Property p : properties) {
+				if (names != null && !names.contains(p.name))
+					continue;
+				Object value = p.get(entity);
+				if (!isEmptyValue(value))
+					serializers.defaultSerializeField(p.name, value, gen);
+				else if (names != null)
+					gen.writeNullField(p.name);
+			}
+			gen.writeEndObject();
+		}
+
+		@Override
+		public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+				throws IOException {
+			serialize(gen, serializers);
+		}
+
+	}
+
+	static class Property {
+
+		final String name;
+
+		final MethodHandle getter;
+
+		Property(String name, Method readMethod) {
+			this.name = name;
+			try {
+				readMethod.setAccessible(true);
+				this.getter = MethodHandles.lookup().unreflect(readMethod)
+						.asType(MethodType.methodType(Object.class, Object.class));
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		Object get(Object entity) {
+			try {
+				return getter.invokeExact(entity);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+	}
+
+}
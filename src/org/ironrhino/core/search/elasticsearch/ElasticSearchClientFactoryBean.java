@@ -52,6 +52,15 @@ public class ElasticSearchClientFactoryBean implements FactoryBean<Client>, Init
 	@Value("${elasticsearch.index.number_of_replicas:0}")
 	private int numberOfReplicas;
 
+	@Value("${elasticsearch.client.transport.sniff:false}")
+	private boolean sniff;
+
+	@Value("${elasticsearch.client.transport.ping_timeout:5s}")
+	private String pingTimeout;
+
+	@Value("${elasticsearch.client.transport.nodes_sampler_interval:5s}")
+	private String nodesSamplerInterval;
+
 	private Node node;
 
 	private Client client;
@@ -84,6 +93,11 @@ public class ElasticSearchClientFactoryBean implements FactoryBean<Client>, Init
 		} else {
 			Map<String, String> map = new HashMap<>();
 			map.put("index.analysis.analyzer.default.type", defaultAnalyzer);
+			if (StringUtils.isNotBlank(clusterName))
+				map.put("cluster.name", clusterName);
+			map.put("client.transport.sniff", String.valueOf(sniff));
+			map.put("client.transport.ping_timeout", pingTimeout);
+			map.put("client.transport.nodes_sampler_interval", nodesSamplerInterval);
 			Settings settings = Settings.builder().put(map).build();
 			TransportClient tclient = new PreBuiltTransportClient(settings);
 			for (String s : connectString.split("\\s*,\\s*")) {
@@ -116,4 +130,4 @@ public class ElasticSearchClientFactoryBean implements FactoryBean<Client>, Init
 	public boolean isSingleton() {
 		return true;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
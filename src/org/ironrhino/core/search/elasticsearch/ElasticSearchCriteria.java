@@ -9,6 +9,12 @@ public class ElasticSearchCriteria extends SearchCriteria {
 
 	private QueryBuilder queryBuilder;
 
+	private String[] includes;
+
+	private String[] excludes;
+
+	private String[] routing;
+
 	public QueryBuilder getQueryBuilder() {
 		return queryBuilder;
 	}
@@ -17,4 +23,28 @@ public class ElasticSearchCriteria extends SearchCriteria {
 		this.queryBuilder = queryBuilder;
 	}
 
+	public String[] getIncludes() {
+		return includes;
+	}
+
+	public void setIncludes(String... includes) {
+		this.includes = includes;
+	}
+
+	public String[] getExcludes() {
+		return excludes;
+	}
+
+	public void setExcludes(String... excludes) {
+		this.excludes = excludes;
+	}
+
+	public String[] getRouting() {
+		return routing;
+	}
+
+	public void setRouting(String... routing) {
+		this.routing = routing;
+	}
+
 }
@@ -2,39 +2,78 @@ package org.ironrhino.core.search.elasticsearch;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.UUIDs;
 import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.QueryStringQueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
-import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.tasks.TaskId;
 import org.ironrhino.core.model.ResultPage;
 import org.ironrhino.core.search.SearchCriteria;
 import org.ironrhino.core.search.SearchService;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 @SuppressWarnings(value = { "unchecked", "rawtypes" })
 @Component("searchService")
 public class ElasticSearchService<T> implements SearchService<T> {
 
+	private static final String TIEBREAKER_FIELD = "_uid";
+
+	private static final String[] NO_INDICES = new String[0];
+
 	@Autowired
 	private Logger logger;
 
@@ -44,6 +83,83 @@ public class ElasticSearchService<T> implements SearchService<T> {
 	@Autowired
 	private IndexManager indexManager;
 
+	@Autowired
+	private SearchResultCache searchResultCache;
+
+	@Autowired
+	private QueryCompiler queryCompiler;
+
+	@Autowired
+	private SearchMetrics searchMetrics;
+
+	private final Map<String, String[]> indicesCache = new ConcurrentHashMap<>();
+
+	// async searches are sent as children of tasks existing only here, so they can be cancelled by their parent
+	private final String parentTaskNode = "search-" + UUIDs.base64UUID();
+
+	private final AtomicLong parentTaskIds = new AtomicLong();
+
+	@Value("${elasticsearch.search.timeout:10s}")
+	private String searchTimeout;
+
+	@Value("${elasticsearch.search.async.timeout:30s}")
+	private String asyncTimeout;
+
+	@Value("${elasticsearch.search.async.threads:0}")
+	private int asyncThreads;
+
+	private TimeValue searchTimeoutValue;
+
+	private long asyncTimeoutInMillis;
+
+	private Executor searchExecutor;
+
+	private ExecutorService ownedExecutor;
+
+	private ScheduledExecutorService timer;
+
+	@Value("${elasticsearch.scroll.size:500}")
+	private int scrollSize;
+
+	@Value("${elasticsearch.scroll.keepAlive:1m}")
+	private String scrollKeepAlive;
+
+	@PostConstruct
+	public void init() {
+		searchTimeoutValue = TimeValue.parseTimeValue(searchTimeout, "elasticsearch.search.timeout");
+		asyncTimeoutInMillis = TimeValue.parseTimeValue(asyncTimeout, "elasticsearch.search.async.timeout").millis();
+		if (searchExecutor == null) {
+			if (asyncThreads > 0) {
+				AtomicInteger counter = new AtomicInteger();
+				ownedExecutor = Executors.newFixedThreadPool(asyncThreads, r -> {
+					Thread t = new Thread(r, "elasticsearch-search-" + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+				searchExecutor = ownedExecutor;
+			} else {
+				searchExecutor = ForkJoinPool.commonPool();
+			}
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "elasticsearch-search-timer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (timer != null)
+			timer.shutdownNow();
+		if (ownedExecutor != null)
+			ownedExecutor.shutdown();
+	}
+
+	public void setSearchExecutor(Executor searchExecutor) {
+		this.searchExecutor = searchExecutor;
+	}
+
 	@Override
 	public ResultPage<T> search(ResultPage<T> resultPage) {
 		return search(resultPage, null);
@@ -54,29 +170,10 @@ public class ElasticSearchService<T> implements SearchService<T> {
 		SearchCriteria criteria = resultPage.getCriteria();
 		if (criteria == null)
 			return resultPage;
-		SearchRequestBuilder srb = criteria2builder(criteria);
-		if (resultPage.isPaged()) {
-			srb.setFrom(resultPage.getStart());
-			srb.setSize(resultPage.getPageSize());
-		} else {
-			srb.setFrom(0);
-			srb.setSize(ResultPage.DEFAULT_MAX_PAGESIZE);
-		}
+		int from = resultPage.isPaged() ? resultPage.getStart() : 0;
+		int size = resultPage.isPaged() ? resultPage.getPageSize() : ResultPage.DEFAULT_MAX_PAGESIZE;
 		try {
-			SearchResponse response = srb.execute().get();
-			SearchHits shs = response.getHits();
-			if (shs != null) {
-				resultPage.setTookInMillis(response.getTookInMillis());
-				resultPage.setTotalResults(shs.getTotalHits());
-				List list = new ArrayList(shs.getHits().length);
-				resultPage.setResult(list);
-				for (SearchHit sh : shs.getHits()) {
-					T data = (T) indexManager.searchHitToEntity(sh);
-					data = mapper == null ? data : mapper.map(data);
-					if (data != null)
-						list.add(data);
-				}
-			}
+			fill(criteria, resultPage, execute(criteria, from, size), mapper);
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 		}
@@ -95,83 +192,598 @@ public class ElasticSearchService<T> implements SearchService<T> {
 
 	@Override
 	public List<T> search(SearchCriteria searchCriteria, Mapper mapper, int limit) {
-		SearchRequestBuilder srb = criteria2builder(searchCriteria);
-		srb.setFrom(0);
-		if (limit > 0 && limit < ResultPage.DEFAULT_MAX_PAGESIZE)
-			srb.setSize(limit);
-		else
-			srb.setSize(ResultPage.DEFAULT_MAX_PAGESIZE);
+		int size = limit > 0 && limit < ResultPage.DEFAULT_MAX_PAGESIZE ? limit : ResultPage.DEFAULT_MAX_PAGESIZE;
 		List list = null;
 		try {
-			SearchResponse response = srb.execute().get();
-			SearchHits shs = response.getHits();
-			list = new ArrayList(shs.getHits().length);
-			for (SearchHit sh : shs.getHits()) {
-				Object data = indexManager.searchHitToEntity(sh);
-				data = mapper == null ? data : mapper.map(data);
-				if (data != null)
-					list.add(data);
+			list = mapHits(searchCriteria, execute(searchCriteria, 0, size).getHits().getHits(), mapper);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+		return list;
+	}
+
+	public CompletableFuture<ResultPage<T>> searchAsync(ResultPage<T> resultPage) {
+		return searchAsync(resultPage, null);
+	}
+
+	public CompletableFuture<ResultPage<T>> searchAsync(ResultPage<T> resultPage, Mapper<T> mapper) {
+		SearchCriteria criteria = resultPage.getCriteria();
+		if (criteria == null)
+			return CompletableFuture.completedFuture(resultPage);
+		int from = resultPage.isPaged() ? resultPage.getStart() : 0;
+		int size = resultPage.isPaged() ? resultPage.getPageSize() : ResultPage.DEFAULT_MAX_PAGESIZE;
+		CompletableFuture<SearchResponse> future = executeAsync(criteria, from, size);
+		return cancelling(future, future.thenApplyAsync(response -> {
+			try {
+				return fill(criteria, resultPage, response, mapper);
+			} catch (Exception e) {
+				throw new CompletionException(e);
 			}
+		}, searchExecutor));
+	}
+
+	public CompletableFuture<List<T>> searchAsync(SearchCriteria searchCriteria, Mapper<T> mapper, int limit) {
+		int size = limit > 0 && limit < ResultPage.DEFAULT_MAX_PAGESIZE ? limit : ResultPage.DEFAULT_MAX_PAGESIZE;
+		CompletableFuture<SearchResponse> future = executeAsync(searchCriteria, 0, size);
+		return cancelling(future, future.thenApplyAsync(response -> {
+			try {
+				return mapHits(searchCriteria, response.getHits().getHits(), mapper);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, searchExecutor));
+	}
+
+	public CompletableFuture<Map<String, Integer>> countTermsByFieldAsync(SearchCriteria searchCriteria,
+			String field) {
+		CompletableFuture<SearchResponse> future = executeAsync(searchCriteria,
+				() -> termsBuilder(searchCriteria, field));
+		return cancelling(future, future.thenApplyAsync(response -> toTermCounts(response, field), searchExecutor));
+	}
+
+	public SearchAfterPage<T> searchAfter(SearchCriteria searchCriteria, Object[] searchAfter, int size) {
+		return searchAfter(searchCriteria, searchAfter, size, null);
+	}
+
+	public SearchAfterPage<T> searchAfter(SearchCriteria searchCriteria, Object[] searchAfter, int size,
+			Mapper<T> mapper) {
+		SearchRequestBuilder srb = criteria2builder(searchCriteria);
+		srb.addSort(TIEBREAKER_FIELD, SortOrder.ASC);
+		srb.setSize(size);
+		if (searchAfter != null && searchAfter.length > 0)
+			srb.searchAfter(searchAfter);
+		SearchAfterPage<T> page = new SearchAfterPage<>();
+		try {
+			SearchResponse response = execute(searchCriteria, srb);
+			SearchHits shs = response.getHits();
+			SearchHit[] hits = shs.getHits();
+			page.setTookInMillis(response.getTookInMillis());
+			page.setTotalResults(shs.getTotalHits());
+			page.setResult(mapHits(searchCriteria, hits, mapper));
+			if (hits.length == size)
+				page.setSearchAfter(hits[hits.length - 1].getSortValues());
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 		}
+		return page;
+	}
+
+	public Stream<T> stream(SearchCriteria searchCriteria) {
+		return stream(searchCriteria, null);
+	}
+
+	public Stream<T> stream(SearchCriteria searchCriteria, Mapper<T> mapper) {
+		ScrollIterator it = new ScrollIterator(searchCriteria, mapper);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL),
+				false).onClose(it::close);
+	}
+
+	private List<T> mapHits(SearchCriteria criteria, SearchHit[] hits, Mapper<T> mapper) throws Exception {
+		long start = System.nanoTime();
+		List<T> list = new ArrayList<>(hits.length);
+		for (SearchHit sh : hits) {
+			T data = (T) indexManager.searchHitToEntity(sh);
+			data = mapper == null ? data : mapper.map(data);
+			if (data != null)
+				list.add(data);
+		}
+		searchMetrics.recordDeserialization(criteria, hits.length, System.nanoTime() - start);
 		return list;
 	}
 
+	private class ScrollIterator implements Iterator<T> {
+
+		private final SearchCriteria searchCriteria;
+
+		private final Mapper<T> mapper;
+
+		private String scrollId;
+
+		private Iterator<T> batch;
+
+		private boolean exhausted;
+
+		ScrollIterator(SearchCriteria searchCriteria, Mapper<T> mapper) {
+			this.searchCriteria = searchCriteria;
+			this.mapper = mapper;
+			SearchRequestBuilder srb = criteria2builder(searchCriteria);
+			if (searchCriteria.getSorts().isEmpty())
+				srb.addSort(SortBuilders.fieldSort("_doc"));
+			srb.setScroll(scrollKeepAlive);
+			srb.setSize(scrollSize);
+			accept(timed(searchCriteria, srb::get));
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!batch.hasNext()) {
+				if (exhausted)
+					return false;
+				accept(timed(searchCriteria, client.prepareSearchScroll(scrollId).setScroll(scrollKeepAlive)::get));
+			}
+			return true;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return batch.next();
+		}
+
+		void close() {
+			if (scrollId != null) {
+				try {
+					client.prepareClearScroll().addScrollId(scrollId).get();
+				} catch (Exception e) {
+					logger.warn(e.getMessage(), e);
+				}
+				scrollId = null;
+			}
+			exhausted = true;
+		}
+
+		private void accept(SearchResponse response) {
+			scrollId = response.getScrollId();
+			SearchHit[] hits = response.getHits().getHits();
+			try {
+				batch = mapHits(searchCriteria, hits, mapper).iterator();
+			} catch (Exception e) {
+				close();
+				throw new RuntimeException(e);
+			}
+			if (hits.length == 0)
+				close();
+		}
+
+	}
+
+	public List<MultiSearch.Response> multiSearch(MultiSearch<T> multiSearch) {
+		try {
+			return multiSearchAsync(multiSearch).get();
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			List<MultiSearch.Response> list = new ArrayList<>(multiSearch.size());
+			for (int i = 0; i < multiSearch.size(); i++)
+				list.add(new MultiSearch.Response(null, e));
+			return list;
+		}
+	}
+
+	public CompletableFuture<List<MultiSearch.Response>> multiSearchAsync(MultiSearch<T> multiSearch) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(asyncTimeoutInMillis);
+		List<MultiSearch.Item<T>> items = multiSearch.getItems();
+		int n = items.size();
+		TaskId parentTask = new TaskId(parentTaskNode, parentTaskIds.incrementAndGet());
+		SearchResponse[] responses = new SearchResponse[n];
+		Exception[] failures = new Exception[n];
+		String[] keys = new String[n];
+		List<Integer> sent = new ArrayList<>(n);
+		MultiSearchRequestBuilder msrb = client.prepareMultiSearch();
+		for (int i = 0; i < n; i++) {
+			MultiSearch.Item<T> item = items.get(i);
+			try {
+				SearchRequestBuilder srb;
+				if (item.kind == MultiSearch.Kind.TERMS) {
+					srb = termsBuilder(item.criteria, item.field);
+				} else if (item.kind == MultiSearch.Kind.FACETS) {
+					srb = facetsBuilder(item.criteria, item.facets);
+				} else {
+					if (searchResultCache.isEnabled()) {
+						keys[i] = searchResultCache.key(item.criteria, item.from, item.size);
+						responses[i] = searchResultCache.get(keys[i]);
+						if (responses[i] != null)
+							continue;
+					}
+					srb = criteria2builder(item.criteria);
+					srb.setFrom(item.from);
+					srb.setSize(item.size);
+				}
+				setDeadline(srb, deadline, parentTask);
+				msrb.add(srb);
+				sent.add(i);
+			} catch (Exception e) {
+				failures[i] = e;
+			}
+		}
+		long start = System.nanoTime();
+		CompletableFuture<MultiSearchResponse> future = sent.isEmpty() ? CompletableFuture.completedFuture(null)
+				: toCompletableFuture(msrb.execute(), deadline, parentTask);
+		return cancelling(future, future.handleAsync((msr, ex) -> {
+			long elapsed = System.nanoTime() - start;
+			for (int j = 0; j < sent.size(); j++) {
+				int i = sent.get(j);
+				if (ex != null) {
+					failures[i] = ex instanceof Exception ? (Exception) ex : new CompletionException(ex);
+					searchMetrics.recordSearchFailure(items.get(i).criteria);
+					continue;
+				}
+				MultiSearchResponse.Item ri = msr.getResponses()[j];
+				if (ri.isFailure()) {
+					failures[i] = ri.getFailure();
+					searchMetrics.recordSearchFailure(items.get(i).criteria);
+				} else {
+					responses[i] = ri.getResponse();
+					searchMetrics.recordSearch(items.get(i).criteria, responses[i], elapsed);
+					if (keys[i] != null)
+						searchResultCache.put(keys[i], responses[i]);
+				}
+			}
+			List<MultiSearch.Response> list = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				if (failures[i] != null) {
+					list.add(new MultiSearch.Response(null, failures[i]));
+					continue;
+				}
+				MultiSearch.Item<T> item = items.get(i);
+				try {
+					Object result;
+					if (item.kind == MultiSearch.Kind.PAGE)
+						result = fill(item.criteria, item.resultPage, responses[i], item.mapper);
+					else if (item.kind == MultiSearch.Kind.LIST)
+						result = mapHits(item.criteria, responses[i].getHits().getHits(), item.mapper);
+					else if (item.kind == MultiSearch.Kind.TERMS)
+						result = toTermCounts(responses[i], item.field);
+					else
+						result = toFacetResults(responses[i], item.facets);
+					list.add(new MultiSearch.Response(result, null));
+				} catch (Exception e) {
+					list.add(new MultiSearch.Response(null, e));
+				}
+			}
+			return list;
+		}, searchExecutor));
+	}
+
 	@Override
 	public Map<String, Integer> countTermsByField(SearchCriteria searchCriteria, String field) {
+		try {
+			return toTermCounts(execute(searchCriteria, termsBuilder(searchCriteria, field)), field);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+		return Collections.emptyMap();
+	}
+
+	public Map<String, FacetResult> facet(SearchCriteria searchCriteria, Facet... facets) {
+		try {
+			return toFacetResults(execute(searchCriteria, facetsBuilder(searchCriteria, facets)), facets);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+		return Collections.emptyMap();
+	}
+
+	public CompletableFuture<Map<String, FacetResult>> facetAsync(SearchCriteria searchCriteria, Facet... facets) {
+		CompletableFuture<SearchResponse> future = executeAsync(searchCriteria,
+				() -> facetsBuilder(searchCriteria, facets));
+		return cancelling(future, future.thenApplyAsync(response -> toFacetResults(response, facets), searchExecutor));
+	}
+
+	private SearchRequestBuilder facetsBuilder(SearchCriteria searchCriteria, Facet... facets) {
+		SearchRequestBuilder srb = criteria2builder(searchCriteria);
+		srb.setFrom(0);
+		srb.setSize(0);
+		for (Facet facet : facets)
+			srb.addAggregation(facet.toAggregation());
+		return srb;
+	}
+
+	private static Map<String, FacetResult> toFacetResults(SearchResponse response, Facet... facets) {
+		Map<String, FacetResult> result = new LinkedHashMap<>(facets.length * 2);
+		for (Facet facet : facets)
+			result.put(facet.getName(), facet.toResult(response.getAggregations()));
+		return result;
+	}
+
+	private SearchRequestBuilder termsBuilder(SearchCriteria searchCriteria, String field) {
 		SearchRequestBuilder srb = criteria2builder(searchCriteria);
 		srb.setFrom(0);
 		srb.setSize(0);
 		TermsAggregationBuilder tb = AggregationBuilders.terms(field);
 		tb.field(field);
 		srb.addAggregation(tb);
+		return srb;
+	}
+
+	private static Map<String, Integer> toTermCounts(SearchResponse response, String field) {
+		Terms aggr = response.getAggregations().get(field);
+		Map<String, Integer> result = new LinkedHashMap<>();
+		for (Terms.Bucket bucket : aggr.getBuckets()) {
+			result.put(bucket.getKey().toString(), (int) bucket.getDocCount());
+		}
+		return result;
+	}
+
+	private ResultPage<T> fill(SearchCriteria criteria, ResultPage<T> resultPage, SearchResponse response,
+			Mapper<T> mapper) throws Exception {
+		SearchHits shs = response.getHits();
+		if (shs != null) {
+			resultPage.setTookInMillis(response.getTookInMillis());
+			resultPage.setTotalResults(shs.getTotalHits());
+			resultPage.setResult(mapHits(criteria, shs.getHits(), mapper));
+		}
+		return resultPage;
+	}
+
+	private SearchResponse execute(SearchCriteria criteria, int from, int size) throws Exception {
+		String key = null;
+		if (searchResultCache.isEnabled()) {
+			key = searchResultCache.key(criteria, from, size);
+			SearchResponse response = searchResultCache.get(key);
+			if (response != null)
+				return response;
+		}
+		SearchRequestBuilder srb = criteria2builder(criteria);
+		srb.setFrom(from);
+		srb.setSize(size);
+		SearchResponse response = execute(criteria, srb);
+		if (key != null)
+			searchResultCache.put(key, response);
+		return response;
+	}
+
+	private SearchResponse execute(SearchCriteria criteria, SearchRequestBuilder srb) throws Exception {
+		return timed(criteria, () -> srb.execute().get());
+	}
+
+	private <E extends Exception> SearchResponse timed(SearchCriteria criteria, SearchCall<E> call) throws E {
+		long start = System.nanoTime();
+		try {
+			SearchResponse response = call.call();
+			searchMetrics.recordSearch(criteria, response, System.nanoTime() - start);
+			return response;
+		} catch (Exception e) {
+			searchMetrics.recordSearchFailure(criteria);
+			throw e;
+		}
+	}
+
+	@FunctionalInterface
+	private interface SearchCall<E extends Exception> {
+		SearchResponse call() throws E;
+	}
+
+	private CompletableFuture<SearchResponse> executeAsync(SearchCriteria criteria, int from, int size) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(asyncTimeoutInMillis);
+		String key = null;
+		SearchRequestBuilder srb;
 		try {
-			SearchResponse response = srb.execute().get();
-			StringTerms aggr = response.getAggregations().get(field);
-			Map<String, Integer> result = new LinkedHashMap<>();
-			for (Terms.Bucket bucket : aggr.getBuckets()) {
-				result.put(bucket.getKey().toString(), (int) bucket.getDocCount());
+			if (searchResultCache.isEnabled()) {
+				key = searchResultCache.key(criteria, from, size);
+				SearchResponse response = searchResultCache.get(key);
+				if (response != null)
+					return CompletableFuture.completedFuture(response);
 			}
-			return result;
+			srb = criteria2builder(criteria);
 		} catch (Exception e) {
-			logger.error(e.getMessage(), e);
+			CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
 		}
-		return Collections.emptyMap();
+		srb.setFrom(from);
+		srb.setSize(size);
+		return executeAsync(criteria, srb, key, deadline);
 	}
 
-	private static Pattern wildcardQueryPattern = Pattern.compile("\\w+:.*[\\?\\*].*");
+	private CompletableFuture<SearchResponse> executeAsync(SearchCriteria criteria,
+			Supplier<SearchRequestBuilder> builder) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(asyncTimeoutInMillis);
+		SearchRequestBuilder srb;
+		try {
+			srb = builder.get();
+		} catch (Exception e) {
+			CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+		return executeAsync(criteria, srb, null, deadline);
+	}
 
-	private SearchRequestBuilder criteria2builder(SearchCriteria criteria) {
-		String[] indices = new String[0];
-		String[] types = criteria.getTypes();
-		if (indices == null || indices.length == 0 && types != null && types.length > 0) {
+	private CompletableFuture<SearchResponse> executeAsync(SearchCriteria criteria, SearchRequestBuilder srb,
+			String cacheKey, long deadline) {
+		long start = System.nanoTime();
+		TaskId parentTask = new TaskId(parentTaskNode, parentTaskIds.incrementAndGet());
+		setDeadline(srb, deadline, parentTask);
+		CompletableFuture<SearchResponse> future = toCompletableFuture(srb.execute(), deadline, parentTask);
+		return cancelling(future, future.whenComplete((response, e) -> {
+			if (e != null) {
+				searchMetrics.recordSearchFailure(criteria);
+				return;
+			}
+			searchMetrics.recordSearch(criteria, response, System.nanoTime() - start);
+			if (cacheKey != null)
+				searchResultCache.put(cacheKey, response);
+		}));
+	}
+
+	private static <R> CompletableFuture<R> cancelling(CompletableFuture<?> source, CompletableFuture<R> dependent) {
+		dependent.whenComplete((r, e) -> {
+			if (dependent.isCancelled())
+				source.cancel(true);
+		});
+		return dependent;
+	}
+
+	private static void setDeadline(SearchRequestBuilder srb, long deadline, TaskId parentTask) {
+		srb.setTimeout(TimeValue.timeValueNanos(Math.max(1, deadline - System.nanoTime())));
+		srb.request().setParentTask(parentTask);
+	}
+
+	private <R> CompletableFuture<R> toCompletableFuture(ListenableActionFuture<R> actionFuture, long deadline,
+			TaskId parentTask) {
+		CompletableFuture<R> future = new CompletableFuture<>();
+		actionFuture.addListener(new ActionListener<R>() {
+			@Override
+			public void onResponse(R response) {
+				future.complete(response);
+			}
+
+			@Override
+			public void onFailure(Exception e) {
+				future.completeExceptionally(e);
+			}
+		});
+		ScheduledFuture<?> timeout = timer.schedule(() -> {
+			future.completeExceptionally(new TimeoutException("search timed out after " + asyncTimeout));
+		}, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		future.whenComplete((response, e) -> {
+			timeout.cancel(false);
+			if ((future.isCancelled() || e != null) && !actionFuture.isDone()) {
+				actionFuture.cancel(true);
+				cancelTasks(parentTask);
+			}
+		});
+		return future;
+	}
+
+	private void cancelTasks(TaskId parentTask) {
+		// cancelling the client side future leaves the search running in the cluster
+		client.admin().cluster().prepareCancelTasks().setParentTaskId(parentTask).setActions(SearchAction.NAME)
+				.execute(ActionListener.wrap(response -> {
+					if (!response.getTasks().isEmpty())
+						logger.debug("Cancelled search tasks {}", response.getTasks());
+				}, e -> logger.warn("Unable to cancel search tasks: {}", e.getMessage())));
+	}
+
+	private String[] resolveIndices(String[] types) {
+		if (types == null || types.length == 0)
+			return NO_INDICES;
+		String key = types.length == 1 ? types[0] : String.join(",", types);
+		String[] indices = indicesCache.get(key);
+		if (indices == null) {
 			indices = new String[types.length];
-			for (int i = 0; i < types.length; i++) {
+			for (int i = 0; i < types.length; i++)
 				indices[i] = indexManager.determineIndexName(types[i]);
+			indicesCache.put(key, indices);
+		}
+		return indices;
+	}
+
+	private String[] resolveRouting(String[] types, QueryBuilder qb) {
+		if (types == null || types.length == 0)
+			return null;
+		String field = indexManager.getRoutingField(types[0]);
+		if (field == null)
+			return null;
+		for (int i = 1; i < types.length; i++)
+			if (!field.equals(indexManager.getRoutingField(types[i])))
+				return null;
+		QueryBuilder clause = findClause(qb,
+				c -> c instanceof TermQueryBuilder && field.equals(((TermQueryBuilder) c).fieldName())
+						&& ((TermQueryBuilder) c).value() != null
+						|| c instanceof TermsQueryBuilder && field.equals(((TermsQueryBuilder) c).fieldName())
+								&& !((TermsQueryBuilder) c).values().isEmpty());
+		if (clause instanceof TermQueryBuilder)
+			return new String[] { String.valueOf(((TermQueryBuilder) clause).value()) };
+		if (clause instanceof TermsQueryBuilder) {
+			Set<String> values = new LinkedHashSet<>();
+			for (Object value : ((TermsQueryBuilder) clause).values())
+				values.add(String.valueOf(value));
+			return values.toArray(new String[values.size()]);
+		}
+		return null;
+	}
+
+	private String[] prunePartitions(String[] types, QueryBuilder qb) {
+		if (types == null || types.length == 0)
+			return null;
+		List<String> indices = new ArrayList<>();
+		boolean pruned = false;
+		for (String type : types) {
+			String field = indexManager.getPartitionField(type);
+			String[] partitions = null;
+			if (field != null) {
+				QueryBuilder clause = findClause(qb, c -> c instanceof RangeQueryBuilder
+						&& field.equals(((RangeQueryBuilder) c).fieldName()) && ((RangeQueryBuilder) c).from() != null);
+				if (clause != null)
+					partitions = indexManager.determinePartitionIndexNames(type, ((RangeQueryBuilder) clause).from(),
+							((RangeQueryBuilder) clause).to());
+			}
+			if (partitions != null) {
+				Collections.addAll(indices, partitions);
+				pruned = true;
+			} else {
+				indices.add(indexManager.determineIndexName(type));
 			}
 		}
-		SearchRequestBuilder srb = client.prepareSearch(indices);
-		srb.setTimeout(new TimeValue(10, TimeUnit.SECONDS));
+		return pruned ? indices.toArray(new String[indices.size()]) : null;
+	}
+
+	private static QueryBuilder findClause(QueryBuilder qb, Predicate<QueryBuilder> predicate) {
+		if (qb == null)
+			return null;
+		if (predicate.test(qb))
+			return qb;
+		if (qb instanceof ConstantScoreQueryBuilder)
+			return findClause(((ConstantScoreQueryBuilder) qb).innerQuery(), predicate);
+		if (qb instanceof BoolQueryBuilder) {
+			BoolQueryBuilder bqb = (BoolQueryBuilder) qb;
+			for (QueryBuilder clause : bqb.filter()) {
+				QueryBuilder found = findClause(clause, predicate);
+				if (found != null)
+					return found;
+			}
+			for (QueryBuilder clause : bqb.must()) {
+				QueryBuilder found = findClause(clause, predicate);
+				if (found != null)
+					return found;
+			}
+		}
+		return null;
+	}
+
+	private SearchRequestBuilder criteria2builder(SearchCriteria criteria) {
+		String[] types = criteria.getTypes();
+		SearchRequestBuilder srb = client.prepareSearch(resolveIndices(types));
+		srb.setTimeout(searchTimeoutValue);
 		if (types != null && types.length > 0)
 			srb.setTypes(types);
 		QueryBuilder qb = null;
-		if (criteria instanceof ElasticSearchCriteria)
-			qb = ((ElasticSearchCriteria) criteria).getQueryBuilder();
+		String[] routing = null;
+		if (criteria instanceof ElasticSearchCriteria) {
+			ElasticSearchCriteria esc = (ElasticSearchCriteria) criteria;
+			qb = esc.getQueryBuilder();
+			routing = esc.getRouting();
+			if (esc.getIncludes() != null && esc.getIncludes().length > 0
+					|| esc.getExcludes() != null && esc.getExcludes().length > 0)
+				srb.setFetchSource(esc.getIncludes(), esc.getExcludes());
+		}
 		String query = criteria.getQuery();
 		if (qb == null && StringUtils.isBlank(query))
 			throw new NullPointerException("queryBuilder is null and queryString is blank");
-		if (qb == null && StringUtils.isNotBlank(query)) {
-			if (wildcardQueryPattern.matcher(query).matches()) {
-				String[] arr = query.split(":", 2);
-				qb = QueryBuilders.wildcardQuery(arr[0], arr[1]);
-			} else {
-				QueryStringQueryBuilder qsqb = new QueryStringQueryBuilder(query);
-				qsqb.defaultOperator(Operator.AND);
-				qb = qsqb;
-			}
+		if (qb == null && StringUtils.isNotBlank(query))
+			qb = queryCompiler.compile(query);
+		if (routing == null || routing.length == 0)
+			routing = resolveRouting(types, qb);
+		if (routing != null && routing.length > 0)
+			srb.setRouting(routing);
+		String[] partitions = prunePartitions(types, qb);
+		if (partitions != null) {
+			srb.setIndices(partitions);
+			srb.setIndicesOptions(IndicesOptions.lenientExpandOpen());
 		}
-		srb.setQuery(qb);
+		srb.setQuery(queryCompiler.rewrite(qb));
 		Map<String, Boolean> sorts = criteria.getSorts();
 		for (Map.Entry<String, Boolean> entry : sorts.entrySet())
 			srb.addSort(entry.getKey(), entry.getValue() ? SortOrder.DESC : SortOrder.ASC);
@@ -0,0 +1,322 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.filter.Filter;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.histogram.HistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.range.Range;
+import org.elasticsearch.search.aggregations.bucket.range.RangeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.aggregations.metrics.cardinality.CardinalityAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentile;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.elasticsearch.search.aggregations.metrics.percentiles.PercentilesAggregationBuilder;
+import org.joda.time.DateTimeZone;
+import org.joda.time.ReadableInstant;
+
+public class Facet {
+
+	public enum Type {
+		TERMS, HISTOGRAM, DATE_HISTOGRAM, RANGE, CARDINALITY, PERCENTILES
+	}
+
+	private final String name;
+
+	private final Type type;
+
+	private final String field;
+
+	private int size;
+
+	private int shardSize;
+
+	private long minDocCount = -1;
+
+	private double interval;
+
+	private String dateInterval;
+
+	private String timeZone;
+
+	private String format;
+
+	private double[] rangeFroms = new double[0];
+
+	private double[] rangeTos = new double[0];
+
+	private double[] percents;
+
+	private long precisionThreshold = -1;
+
+	private QueryBuilder filter;
+
+	private final List<Facet> subFacets = new ArrayList<>();
+
+	private Facet(String name, Type type, String field) {
+		this.name = name;
+		this.type = type;
+		this.field = field;
+	}
+
+	public static Facet terms(String name, String field) {
+		return new Facet(name, Type.TERMS, field);
+	}
+
+	public static Facet histogram(String name, String field, double interval) {
+		Facet facet = new Facet(name, Type.HISTOGRAM, field);
+		facet.interval = interval;
+		return facet;
+	}
+
+	public static Facet dateHistogram(String name, String field, String interval) {
+		Facet facet = new Facet(name, Type.DATE_HISTOGRAM, field);
+		facet.dateInterval = interval;
+		return facet;
+	}
+
+	public static Facet range(String name, String field) {
+		return new Facet(name, Type.RANGE, field);
+	}
+
+	public static Facet cardinality(String name, String field) {
+		return new Facet(name, Type.CARDINALITY, field);
+	}
+
+	public static Facet percentiles(String name, String field, double... percents) {
+		Facet facet = new Facet(name, Type.PERCENTILES, field);
+		facet.percents = percents;
+		return facet;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getField() {
+		return field;
+	}
+
+	public Facet size(int size) {
+		this.size = size;
+		return this;
+	}
+
+	public Facet shardSize(int shardSize) {
+		this.shardSize = shardSize;
+		return this;
+	}
+
+	public Facet minDocCount(long minDocCount) {
+		this.minDocCount = minDocCount;
+		return this;
+	}
+
+	public Facet timeZone(String timeZone) {
+		this.timeZone = timeZone;
+		return this;
+	}
+
+	public Facet format(String format) {
+		this.format = format;
+		return this;
+	}
+
+	public Facet addRange(double from, double to) {
+		int n = rangeFroms.length;
+		rangeFroms = Arrays.copyOf(rangeFroms, n + 1);
+		rangeTos = Arrays.copyOf(rangeTos, n + 1);
+		rangeFroms[n] = from;
+		rangeTos[n] = to;
+		return this;
+	}
+
+	public Facet addUnboundedFrom(double from) {
+		return addRange(from, Double.NaN);
+	}
+
+	public Facet addUnboundedTo(double to) {
+		return addRange(Double.NaN, to);
+	}
+
+	public Facet precisionThreshold(long precisionThreshold) {
+		this.precisionThreshold = precisionThreshold;
+		return this;
+	}
+
+	public Facet filter(QueryBuilder filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	public Facet subFacet(Facet facet) {
+		if (type == Type.CARDINALITY || type == Type.PERCENTILES)
+			throw new IllegalArgumentException(type + " facet doesn't support sub facets");
+		subFacets.add(facet);
+		return this;
+	}
+
+	AggregationBuilder toAggregation() {
+		AggregationBuilder ab;
+		switch (type) {
+		case TERMS:
+			TermsAggregationBuilder tb = AggregationBuilders.terms(name).field(field);
+			if (size > 0)
+				tb.size(size);
+			if (shardSize > 0)
+				tb.shardSize(shardSize);
+			if (minDocCount >= 0)
+				tb.minDocCount(minDocCount);
+			ab = tb;
+			break;
+		case HISTOGRAM:
+			HistogramAggregationBuilder hb = AggregationBuilders.histogram(name).field(field).interval(interval);
+			if (minDocCount >= 0)
+				hb.minDocCount(minDocCount);
+			if (format != null)
+				hb.format(format);
+			ab = hb;
+			break;
+		case DATE_HISTOGRAM:
+			DateHistogramAggregationBuilder dhb = AggregationBuilders.dateHistogram(name).field(field)
+					.dateHistogramInterval(new DateHistogramInterval(dateInterval));
+			if (minDocCount >= 0)
+				dhb.minDocCount(minDocCount);
+			if (timeZone != null)
+				dhb.timeZone(DateTimeZone.forID(timeZone));
+			if (format != null)
+				dhb.format(format);
+			ab = dhb;
+			break;
+		case RANGE:
+			RangeAggregationBuilder rb = AggregationBuilders.range(name).field(field);
+			for (int i = 0; i < rangeFroms.length; i++) {
+				if (Double.isNaN(rangeFroms[i]))
+					rb.addUnboundedTo(rangeTos[i]);
+				else if (Double.isNaN(rangeTos[i]))
+					rb.addUnboundedFrom(rangeFroms[i]);
+				else
+					rb.addRange(rangeFroms[i], rangeTos[i]);
+			}
+			if (format != null)
+				rb.format(format);
+			ab = rb;
+			break;
+		case CARDINALITY:
+			CardinalityAggregationBuilder cb = AggregationBuilders.cardinality(name).field(field);
+			if (precisionThreshold >= 0)
+				cb.precisionThreshold(precisionThreshold);
+			ab = cb;
+			break;
+		case PERCENTILES:
+			PercentilesAggregationBuilder pb = AggregationBuilders.percentiles(name).field(field);
+			if (percents != null && percents.length > 0)
+				pb.percentiles(percents);
+			ab = pb;
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported facet type: " + type);
+		}
+		for (Facet facet : subFacets)
+			ab.subAggregation(facet.toAggregation());
+		if (filter != null)
+			ab = AggregationBuilders.filter(name, filter).subAggregation(ab);
+		return ab;
+	}
+
+	FacetResult toResult(Aggregations aggregations) {
+		FacetResult result = new FacetResult(name, type);
+		if (filter != null) {
+			Filter f = aggregations.get(name);
+			result.docCount = f.getDocCount();
+			aggregations = f.getAggregations();
+		}
+		switch (type) {
+		case TERMS:
+			Terms terms = aggregations.get(name);
+			result.otherDocCount = terms.getSumOfOtherDocCounts();
+			result.buckets = toBuckets(terms.getBuckets());
+			break;
+		case HISTOGRAM:
+		case DATE_HISTOGRAM:
+			result.buckets = toBuckets(((MultiBucketsAggregation) aggregations.get(name)).getBuckets());
+			break;
+		case RANGE:
+			Range range = aggregations.get(name);
+			List<FacetResult.Bucket> buckets = toBuckets(range.getBuckets());
+			int i = 0;
+			for (Range.Bucket rb : range.getBuckets()) {
+				FacetResult.Bucket bucket = buckets.get(i++);
+				bucket.from = toDouble(rb.getFrom());
+				bucket.to = toDouble(rb.getTo());
+			}
+			result.buckets = buckets;
+			break;
+		case CARDINALITY:
+			Cardinality cardinality = aggregations.get(name);
+			result.value = cardinality.getValue();
+			break;
+		case PERCENTILES:
+			Percentiles percentiles = aggregations.get(name);
+			int n = 0;
+			for (Iterator<Percentile> it = percentiles.iterator(); it.hasNext(); it.next())
+				n++;
+			result.percents = new double[n];
+			result.percentileValues = new double[n];
+			int j = 0;
+			for (Percentile p : percentiles) {
+				result.percents[j] = p.getPercent();
+				result.percentileValues[j++] = p.getValue();
+			}
+			break;
+		default:
+			break;
+		}
+		return result;
+	}
+
+	private List<FacetResult.Bucket> toBuckets(List<? extends MultiBucketsAggregation.Bucket> list) {
+		if (list.isEmpty())
+			return Collections.emptyList();
+		List<FacetResult.Bucket> buckets = new ArrayList<>(list.size());
+		for (MultiBucketsAggregation.Bucket b : list) {
+			FacetResult.Bucket bucket = new FacetResult.Bucket(b.getKeyAsString(), toDouble(b.getKey()),
+					b.getDocCount());
+			if (!subFacets.isEmpty()) {
+				Map<String, FacetResult> map = new LinkedHashMap<>(subFacets.size() * 2);
+				for (Facet facet : subFacets)
+					map.put(facet.getName(), facet.toResult(b.getAggregations()));
+				bucket.subFacets = map;
+			}
+			buckets.add(bucket);
+		}
+		return buckets;
+	}
+
+	private static double toDouble(Object key) {
+		if (key instanceof Number)
+			return ((Number) key).doubleValue();
+		if (key instanceof ReadableInstant)
+			return ((ReadableInstant) key).getMillis();
+		return Double.NaN;
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class FacetResult implements Serializable {
+
+	private static final long serialVersionUID = -3296583812468740251L;
+
+	private final String name;
+
+	private final Facet.Type type;
+
+	long docCount = -1;
+
+	long otherDocCount;
+
+	double value = Double.NaN;
+
+	double[] percents;
+
+	double[] percentileValues;
+
+	List<Bucket> buckets = Collections.emptyList();
+
+	FacetResult(String name, Facet.Type type) {
+		this.name = name;
+		this.type = type;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Facet.Type getType() {
+		return type;
+	}
+
+	public long getDocCount() {
+		return docCount;
+	}
+
+	public long getOtherDocCount() {
+		return otherDocCount;
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	public double[] getPercents() {
+		return percents;
+	}
+
+	public double[] getPercentileValues() {
+		return percentileValues;
+	}
+
+	public double getPercentile(double percent) {
+		if (percents != null)
+			for (int i = 0; i < percents.length; i++)
+				if (percents[i] == percent)
+					return percentileValues[i];
+		return Double.NaN;
+	}
+
+	public List<Bucket> getBuckets() {
+		return buckets;
+	}
+
+	@Override
+	public String toString() {
+		return name + "(" + type + ")" + (buckets.isEmpty() ? "" : buckets);
+	}
+
+	public static class Bucket implements Serializable {
+
+		private static final long serialVersionUID = 5178023650341929683L;
+
+		private final String key;
+
+		private final double numericKey;
+
+		private final long docCount;
+
+		double from = Double.NaN;
+
+		double to = Double.NaN;
+
+		Map<String, FacetResult> subFacets = Collections.emptyMap();
+
+		Bucket(String key, double numericKey, long docCount) {
+			this.key = key;
+			this.numericKey = numericKey;
+			this.docCount = docCount;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public double getNumericKey() {
+			return numericKey;
+		}
+
+		public long getDocCount() {
+			return docCount;
+		}
+
+		public double getFrom() {
+			return from;
+		}
+
+		public double getTo() {
+			return to;
+		}
+
+		public Map<String, FacetResult> getSubFacets() {
+			return subFacets;
+		}
+
+		public FacetResult getSubFacet(String name) {
+			return subFacets.get(name);
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + docCount;
+		}
+
+	}
+
+}
@@ -1,12 +1,17 @@
 package org.ironrhino.core.search.elasticsearch;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.aspectj.lang.annotation.AfterReturning;
 import org.aspectj.lang.annotation.Aspect;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.DocWriteResponse.Result;
 import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexResponse;
 import org.ironrhino.core.aop.AopContext;
@@ -17,6 +22,8 @@ import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.Ordered;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 @Aspect
 @SuppressWarnings("rawtypes")
@@ -29,6 +36,15 @@ public class IndexAspect implements Ordered {
 	@Autowired
 	private IndexManager indexManager;
 
+	@Autowired
+	private IndexWriteBehindQueue indexWriteBehindQueue;
+
+	@Autowired
+	private IndexOutbox indexOutbox;
+
+	@Autowired
+	private DirtyPropertyTracker dirtyPropertyTracker;
+
 	private int order;
 
 	public IndexAspect() {
@@ -40,29 +56,65 @@ public class IndexAspect implements Ordered {
 		if (!AopContext.isBypass(this.getClass()) && list != null)
 			for (Object entity : list) {
 				Searchable searchable = ReflectionUtils.getActualClass(entity).getAnnotation(Searchable.class);
-				if (searchable != null) {
-					ListenableActionFuture<DeleteResponse> laf = indexManager.delete((Persistable) entity);
-					laf.addListener(deleteResponseActionListener);
-				}
+				if (searchable != null)
+					delete((Persistable) entity);
 			}
 	}
 
 	@AfterReturning("execution(* org.ironrhino.core.service.BaseManager.delete(*)) and args(entity) and @args(searchable)")
 	public void delete(Persistable entity, Searchable searchable) {
-		if (!AopContext.isBypass(this.getClass())) {
-			ListenableActionFuture<DeleteResponse> laf = indexManager.delete(entity);
-			laf.addListener(deleteResponseActionListener);
-		}
+		if (!AopContext.isBypass(this.getClass()))
+			delete(entity);
 	}
 
 	@AfterReturning("execution(* org.ironrhino.core.service.BaseManager.save(*)) and args(entity) and @args(searchable)")
 	public void save(Persistable entity, Searchable searchable) throws Throwable {
-		if (!AopContext.isBypass(this.getClass())) {
+		if (!AopContext.isBypass(this.getClass()))
+			index(entity);
+	}
+
+	private void index(Persistable entity) {
+		TransactionalIndexSynchronization synchronization = currentSynchronization();
+		if (synchronization != null) {
+			synchronization.add(IndexOperation.Action.INDEX, entity);
+		} else if (indexWriteBehindQueue.isEnabled()) {
+			indexWriteBehindQueue.index(entity);
+		} else if (indexOutbox.isEnabled()) {
+			indexOutbox.execute(Collections.singletonList(indexManager.prepareIndex(entity)));
+		} else {
 			ListenableActionFuture<IndexResponse> laf = indexManager.index(entity);
 			laf.addListener(indexResponseActionListener);
 		}
 	}
 
+	private void delete(Persistable entity) {
+		TransactionalIndexSynchronization synchronization = currentSynchronization();
+		if (synchronization != null) {
+			synchronization.add(IndexOperation.Action.DELETE, entity);
+		} else if (indexWriteBehindQueue.isEnabled()) {
+			indexWriteBehindQueue.delete(entity);
+		} else if (indexOutbox.isEnabled()) {
+			indexOutbox.execute(Collections.singletonList(indexManager.prepareDelete(entity)));
+		} else {
+			ListenableActionFuture<DeleteResponse> laf = indexManager.delete(entity);
+			laf.addListener(deleteResponseActionListener);
+		}
+	}
+
+	private TransactionalIndexSynchronization currentSynchronization() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()
+				|| !TransactionSynchronizationManager.isActualTransactionActive())
+			return null;
+		TransactionalIndexSynchronization synchronization = (TransactionalIndexSynchronization) TransactionSynchronizationManager
+				.getResource(this);
+		if (synchronization == null) {
+			synchronization = new TransactionalIndexSynchronization();
+			TransactionSynchronizationManager.bindResource(this, synchronization);
+			TransactionSynchronizationManager.registerSynchronization(synchronization);
+		}
+		return synchronization;
+	}
+
 	@Override
 	public int getOrder() {
 		return order;
@@ -96,4 +148,82 @@ public class IndexAspect implements Ordered {
 		}
 	};
 
+	private class TransactionalIndexSynchronization extends TransactionSynchronizationAdapter {
+
+		private final Map<Persistable, IndexOperation.Action> entities = new LinkedHashMap<>();
+
+		private Collection<IndexOperation> operations;
+
+		void add(IndexOperation.Action action, Persistable entity) {
+			entities.remove(entity);
+			entities.put(entity, action);
+		}
+
+		@Override
+		public void beforeCommit(boolean readOnly) {
+			Map<String, IndexOperation> map = new LinkedHashMap<>();
+			for (Map.Entry<Persistable, IndexOperation.Action> entry : entities.entrySet()) {
+				Persistable entity = entry.getKey();
+				IndexOperation operation;
+				if (entry.getValue() == IndexOperation.Action.DELETE)
+					operation = indexManager.prepareDelete(entity);
+				else if (dirtyPropertyTracker.isEnabled())
+					operation = indexManager.prepareUpdate(entity, dirtyPropertyTracker.getDirtyProperties(entity));
+				else
+					operation = indexManager.prepareIndex(entity);
+				if (operation == null)
+					continue;
+				map.remove(operation.getKey());
+				map.put(operation.getKey(), operation);
+			}
+			operations = map.values();
+		}
+
+		@Override
+		public void afterCommit() {
+			if (operations == null || operations.isEmpty())
+				return;
+			if (indexWriteBehindQueue.isEnabled()) {
+				for (IndexOperation operation : operations)
+					indexWriteBehindQueue.enqueue(operation);
+			} else if (indexOutbox.isEnabled()) {
+				indexOutbox.execute(operations);
+			} else {
+				indexManager.execute(operations).addListener(bulkResponseActionListener);
+			}
+		}
+
+		// operations of a suspended transaction must not be collected by the inner one
+		@Override
+		public void suspend() {
+			TransactionSynchronizationManager.unbindResourceIfPossible(IndexAspect.this);
+		}
+
+		@Override
+		public void resume() {
+			TransactionSynchronizationManager.bindResource(IndexAspect.this, this);
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(IndexAspect.this);
+			if (status != STATUS_COMMITTED && !entities.isEmpty())
+				logger.debug("Discarded {} index operations of rolled back transaction", entities.size());
+		}
+
+	}
+
+	private ActionListener<BulkResponse> bulkResponseActionListener = new ActionListener<BulkResponse>() {
+		@Override
+		public void onResponse(BulkResponse response) {
+			if (response.hasFailures())
+				logger.error(response.buildFailureMessage());
+		}
+
+		@Override
+		public void onFailure(Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	};
+
 }
@@ -1,6 +1,11 @@
 package org.ironrhino.core.search.elasticsearch;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+
 import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.search.SearchHit;
@@ -15,10 +20,42 @@ public interface IndexManager {
 
 	public ListenableActionFuture<DeleteResponse> delete(Persistable entity);
 
+	public IndexOperation prepareIndex(Persistable entity);
+
+	public IndexOperation prepareUpdate(Persistable entity, Collection<String> properties);
+
+	public IndexOperation prepareDelete(Persistable entity);
+
+	public ListenableActionFuture<BulkResponse> execute(Collection<IndexOperation> operations);
+
 	public String determineIndexName(String type);
 
+	public String getRoutingField(String type);
+
+	public String getRouting(Persistable entity);
+
+	public String getPartitionField(String type);
+
+	public String[] determinePartitionIndexNames(String type, Object from, Object to);
+
 	public void rebuild();
 
-	public void indexAll(String type);
+	public Map<String, RebuildProgress> getRebuildProgress();
+
+	public void pauseRebuild();
+
+	public void cancelRebuild();
+
+	public IndexingSummary indexAll(String type);
+
+	public IndexingSummary indexSince(String type, Instant since);
+
+	public void sync();
+
+	public void maintainPartitions();
+
+	public void verify();
+
+	public ConsistencyReport verify(String type, boolean repair);
 
 }
@@ -1,35 +1,96 @@
 package org.ironrhino.core.search.elasticsearch;
 
 import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
+import javax.persistence.EntityNotFoundException;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
-import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.PlainListenableActionFuture;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.IndicesAdminClient;
 import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.sort.SortOrder;
+import org.hibernate.UnresolvableObjectException;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
 import org.ironrhino.core.coordination.LockService;
 import org.ironrhino.core.metadata.Trigger;
 import org.ironrhino.core.model.Persistable;
@@ -37,20 +98,37 @@ import org.ironrhino.core.search.elasticsearch.annotations.Index;
 import org.ironrhino.core.search.elasticsearch.annotations.Searchable;
 import org.ironrhino.core.search.elasticsearch.annotations.SearchableComponent;
 import org.ironrhino.core.search.elasticsearch.annotations.SearchableId;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchablePartition;
 import org.ironrhino.core.search.elasticsearch.annotations.SearchableProperty;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableRouting;
 import org.ironrhino.core.search.elasticsearch.annotations.Store;
+import org.ironrhino.core.service.BaseManager.IterateCallback;
 import org.ironrhino.core.service.EntityManager;
-import org.ironrhino.core.util.AnnotationUtils;
 import org.ironrhino.core.util.ClassScanner;
 import org.ironrhino.core.util.DateUtils;
 import org.ironrhino.core.util.JsonUtils;
 import org.ironrhino.core.util.ReflectionUtils;
 import org.slf4j.Logger;
 import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.NullValueInNestedPathException;
+import org.springframework.beans.SimpleTypeConverter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.deser.DeserializationProblemHandler;
 import com.fasterxml.jackson.databind.introspect.Annotated;
 import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
 
@@ -60,6 +138,29 @@ public class IndexManagerImpl implements IndexManager {
 
 	private static final String INDEX_PREFIX = "index_";
 
+	private static final int MAX_PRUNED_PARTITIONS = 100;
+
+	private static final String UNDATED_PARTITION = "undated";
+
+	private static final String METADATA_INDEX = "search_metadata";
+
+	private static final String WATERMARK = "watermark";
+
+	private static final String MAPPING_HASH = "mappingHash";
+
+	private static final String CHECKPOINT = "checkpoint";
+
+	private static final String BULK_LOAD = "bulkLoad";
+
+	private static final String[] METADATA_KINDS = { WATERMARK, CHECKPOINT, BULK_LOAD };
+
+	private static final String[] BULK_LOAD_SETTINGS = { "index.refresh_interval", "index.number_of_replicas",
+			"index.translog.durability" };
+
+	private static final int PARTITIONS_PER_WORKER = 4;
+
+	private static final String DIGEST_FIELD = "searchDigest";
+
 	@Autowired
 	private Logger logger;
 
@@ -67,6 +168,12 @@ public class IndexManagerImpl implements IndexManager {
 
 	private Map<Class, Map<String, Object>> schemaMapping;
 
+	private Map<Class, DocumentSerializer> documentSerializers = new ConcurrentHashMap<>();
+
+	private Map<String, ObjectReader> objectReaders = new ConcurrentHashMap<>();
+
+	private Map<Class, Boolean> partiallyUpdatables = new ConcurrentHashMap<>();
+
 	@Autowired
 	private LockService lockService;
 
@@ -76,25 +183,111 @@ public class IndexManagerImpl implements IndexManager {
 	@Autowired
 	private EntityManager entityManager;
 
-	private ObjectMapper objectMapper;
+	@Lazy
+	@Autowired
+	private IndexOutbox indexOutbox;
 
-	@PostConstruct
-	public void init() {
-		objectMapper = JsonUtils.createNewObjectMapper();
-		objectMapper.setDateFormat(new SimpleDateFormat(DateUtils.DATETIME_ISO));
-		objectMapper.setAnnotationIntrospector(new JacksonAnnotationIntrospector() {
+	@Autowired
+	private SearchResultCache searchResultCache;
 
-			private static final long serialVersionUID = -2795053276465297328L;
+	@Autowired
+	private SearchMetrics searchMetrics;
 
-			@Override
-			protected boolean _isIgnorable(Annotated a) {
-				if (a.getAnnotation(SearchableId.class) != null || a.getAnnotation(SearchableProperty.class) != null
-						|| a.getAnnotation(SearchableComponent.class) != null)
-					return false;
-				return super._isIgnorable(a);
-			}
+	@Autowired
+	private DirtyPropertyTracker dirtyPropertyTracker;
 
-		});
+	@Value("${elasticsearch.bulk.actions:500}")
+	private int bulkActions;
+
+	@Value("${elasticsearch.bulk.size:5mb}")
+	private String bulkSize;
+
+	private long bulkSizeInBytes;
+
+	@Value("${elasticsearch.bulk.concurrency:4}")
+	private int bulkConcurrency;
+
+	@Value("${elasticsearch.bulk.adaptive:true}")
+	private boolean bulkAdaptive;
+
+	@Value("${elasticsearch.bulk.targetLatency:1000}")
+	private long bulkTargetLatency;
+
+	@Value("${elasticsearch.bulk.maxRetries:5}")
+	private int bulkMaxRetries;
+
+	@Value("${elasticsearch.bulk.retryBackoff:200}")
+	private long bulkRetryBackoff;
+
+	@Value("${elasticsearch.index.number_of_replicas:0}")
+	private int numberOfReplicas;
+
+	@Value("${elasticsearch.index.generations.retained:2}")
+	private int generationsRetained;
+
+	@Value("${elasticsearch.sync.modifyDateProperty:modifyDate}")
+	private String modifyDateProperty;
+
+	@Value("${elasticsearch.sync.createDateProperty:createDate}")
+	private String createDateProperty;
+
+	@Value("${elasticsearch.sync.clockSkew:60000}")
+	private long syncClockSkew;
+
+	@Value("${elasticsearch.mapping.checkConcurrency:8}")
+	private int mappingCheckConcurrency;
+
+	@Value("${elasticsearch.mapping.rebuildOnConflict:false}")
+	private boolean rebuildOnMappingConflict;
+
+	@Value("${elasticsearch.rebuild.checkpointInterval:10000}")
+	private int checkpointInterval;
+
+	@Value("${elasticsearch.index.partition.parallelism:0}")
+	private int partitionParallelism;
+
+	@Value("${elasticsearch.index.partition.threshold:100000}")
+	private long partitionThreshold;
+
+	// applies to indices behind the alias, fresh generations of a rebuild are always bulk loaded
+	@Value("${elasticsearch.bulkLoad.enabled:false}")
+	private boolean bulkLoadEnabled;
+
+	@Value("${elasticsearch.bulkLoad.forceMerge:false}")
+	private boolean bulkLoadForceMerge;
+
+	@Value("${elasticsearch.verify.chunkSize:1000}")
+	private int verifyChunkSize;
+
+	@Value("${elasticsearch.verify.repair:true}")
+	private boolean verifyRepair;
+
+	@Value("${elasticsearch.partition.closeDelay:86400000}")
+	private long partitionCloseDelay;
+
+	@Value("${elasticsearch.partition.maxSize:50gb}")
+	private String partitionMaxSize;
+
+	private Map<String, String> rebuildingIndices = new ConcurrentHashMap<>();
+
+	private volatile Map<String, RebuildProgress> rebuildProgress = new ConcurrentHashMap<>();
+
+	private volatile RebuildProgress.Status stopRequest;
+
+	private Map<Class, String> mappingHashes = new ConcurrentHashMap<>();
+
+	private Map<Class, String> routingPaths = new ConcurrentHashMap<>();
+
+	private Map<Class, SearchablePartition> partitionings = new ConcurrentHashMap<>();
+
+	private Map<String, List<String>> mappingConflicts = new ConcurrentHashMap<>();
+
+	private ObjectMapper objectMapper;
+
+	@PostConstruct
+	public void init() {
+		bulkSizeInBytes = ByteSizeValue.parseBytesSizeValue(bulkSize, "elasticsearch.bulk.size").getBytes();
+		objectMapper = createObjectMapper();
 		Collection<Class<?>> set = ClassScanner.scanAnnotated(ClassScanner.getAppPackages(), Searchable.class);
 		typeClassMapping = new HashMap<>(set.size());
 		schemaMapping = new HashMap<>(set.size());
@@ -103,8 +296,25 @@ public class IndexManagerImpl implements IndexManager {
 			if (!searchable.root() || c.getSimpleName().contains("$"))
 				continue;
 			typeClassMapping.put(classToType(c), c);
-			schemaMapping.put(c, getSchemaMapping(c, false));
+			objectReaders.put(classToType(c), entityReader(c));
+			Map<String, Object> mapping = getSchemaMapping(c, false);
+			Map<String, Object> digest = new HashMap<>();
+			digest.put("type", "keyword");
+			digest.put("index", false);
+			((Map<String, Object>) mapping.get("properties")).put(DIGEST_FIELD, digest);
+			String routingPath = getRoutingPath(c);
+			if (routingPath != null) {
+				routingPaths.put(c, routingPath);
+				mapping.put("_routing", Collections.singletonMap("required", true));
+			}
+			SearchablePartition partitioning = (SearchablePartition) c.getAnnotation(SearchablePartition.class);
+			if (partitioning != null)
+				partitionings.put(c, partitioning);
+			schemaMapping.put(c, mapping);
+			mappingHashes.put(c, hash(mapping));
+			documentSerializers.put(c, new DocumentSerializer(c, objectMapper));
 		}
+		initializeMetadata();
 		initialize();
 		if (client instanceof NodeClient) {
 			NodeClient nc = (NodeClient) client;
@@ -113,6 +323,39 @@ public class IndexManagerImpl implements IndexManager {
 		}
 	}
 
+	static ObjectMapper createObjectMapper() {
+		ObjectMapper objectMapper = JsonUtils.createNewObjectMapper();
+		objectMapper.setDateFormat(new SimpleDateFormat(DateUtils.DATETIME_ISO));
+		objectMapper.setAnnotationIntrospector(new JacksonAnnotationIntrospector() {
+
+			private static final long serialVersionUID = -2795053276465297328L;
+
+			@Override
+			protected boolean _isIgnorable(Annotated a) {
+				if (a.getAnnotation(SearchableId.class) != null || a.getAnnotation(SearchableProperty.class) != null
+						|| a.getAnnotation(SearchableComponent.class) != null)
+					return false;
+				return super._isIgnorable(a);
+			}
+
+		});
+		return objectMapper;
+	}
+
+	// only the digest maintained for verification is tolerated, other unknown properties still fail
+	private ObjectReader entityReader(Class c) {
+		return objectMapper.readerFor(c).withHandler(new DeserializationProblemHandler() {
+			@Override
+			public boolean handleUnknownProperty(DeserializationContext ctxt, JsonParser p,
+					JsonDeserializer<?> deserializer, Object beanOrClass, String propertyName) throws IOException {
+				if (!DIGEST_FIELD.equals(propertyName))
+					return false;
+				p.skipChildren();
+				return true;
+			}
+		});
+	}
+
 	private static Map<String, Object> getSchemaMapping(Class c, boolean component) {
 		Map<String, Object> mapping = new HashMap<>();
 		Map<String, Object> properties = new HashMap<>();
@@ -174,6 +417,25 @@ public class IndexManagerImpl implements IndexManager {
 		return mapping;
 	}
 
+	private static String getRoutingPath(Class c) {
+		for (PropertyDescriptor pd : BeanUtils.getPropertyDescriptors(c)) {
+			Method m = pd.getReadMethod();
+			if (m == null)
+				continue;
+			SearchableRouting routing = m.getAnnotation(SearchableRouting.class);
+			if (routing == null) {
+				try {
+					Field f = m.getDeclaringClass().getDeclaredField(pd.getName());
+					routing = f.getAnnotation(SearchableRouting.class);
+				} catch (Exception e) {
+				}
+			}
+			if (routing != null)
+				return StringUtils.isNotBlank(routing.value()) ? pd.getName() + '.' + routing.value() : pd.getName();
+		}
+		return null;
+	}
+
 	public static class PropertyMapping {
 		private String type = "text";
 		private String index_name;
@@ -400,21 +662,34 @@ public class IndexManagerImpl implements IndexManager {
 
 	}
 
-	private String entityToDocument(Persistable entity) {
-		Map<String, Object> map = AnnotationUtils.getAnnotatedPropertyNameAndValues(entity, SearchableId.class,
-				SearchableProperty.class, SearchableComponent.class);
-		Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
-		while (it.hasNext()) {
-			Object value = it.next().getValue();
-			if (value == null || value instanceof String && StringUtils.isBlank((String) value)
-					|| value instanceof Collection && ((Collection) value).isEmpty()
-					|| value.getClass().isArray() && ((Object[]) value).length == 0)
-				it.remove();
-		}
-		if (map.isEmpty())
-			logger.warn("{} is empty", entity);
+	private byte[] entityToDocument(Persistable entity) {
+		byte[] document = serialize(entity);
+		return document != null ? withDigest(document) : null;
+	}
+
+	private static byte[] withDigest(byte[] document) {
+		return appendField(document, DIGEST_FIELD, '"' + DigestUtils.md5Hex(document) + '"');
+	}
+
+	private static byte[] appendField(byte[] document, String name, String rawValue) {
+		byte[] field = ((document.length > 2 ? "," : "") + '"' + name + "\":" + rawValue + "}")
+				.getBytes(StandardCharsets.UTF_8);
+		byte[] result = Arrays.copyOf(document, document.length - 1 + field.length);
+		System.arraycopy(field, 0, result, document.length - 1, field.length);
+		return result;
+	}
+
+	private DocumentSerializer getDocumentSerializer(Class clazz) {
+		return documentSerializers.computeIfAbsent(clazz, c -> new DocumentSerializer(c, objectMapper));
+	}
+
+	private byte[] serialize(Persistable entity) {
+		DocumentSerializer serializer = getDocumentSerializer(ReflectionUtils.getActualClass(entity));
 		try {
-			return objectMapper.writeValueAsString(map);
+			byte[] document = serializer.serialize(entity);
+			if (document.length <= 2)
+				logger.warn("{} is empty", entity);
+			return document;
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 			return null;
@@ -438,105 +713,1593 @@ public class IndexManagerImpl implements IndexManager {
 		return INDEX_PREFIX + type.toLowerCase();
 	}
 
+	@Override
+	public String getRoutingField(String type) {
+		Class clazz = typeToClass(type);
+		return clazz != null ? routingPaths.get(clazz) : null;
+	}
+
+	@Override
+	public String getPartitionField(String type) {
+		Class clazz = typeToClass(type);
+		SearchablePartition partitioning = clazz != null ? partitionings.get(clazz) : null;
+		return partitioning != null ? partitioning.value() : null;
+	}
+
+	@Override
+	public String[] determinePartitionIndexNames(String type, Object from, Object to) {
+		Class clazz = typeToClass(type);
+		SearchablePartition partitioning = clazz != null ? partitionings.get(clazz) : null;
+		if (partitioning == null)
+			return null;
+		LocalDate start = toLocalDate(from);
+		LocalDate end = to != null ? toLocalDate(to) : LocalDate.now();
+		if (start == null || end == null || start.isAfter(end))
+			return null;
+		// widen by a day so time zone differences never exclude a boundary partition
+		start = truncate(start.minusDays(1), partitioning.interval());
+		end = end.plusDays(1);
+		List<String> indices = new ArrayList<>();
+		for (LocalDate date = start; !date.isAfter(end); date = next(date, partitioning.interval())) {
+			indices.add(partitionIndexName(type, format(date, partitioning.interval())));
+			if (indices.size() > MAX_PRUNED_PARTITIONS)
+				return null;
+		}
+		return indices.toArray(new String[indices.size()]);
+	}
+
+	private String partitionIndexName(String type, String partition) {
+		return determineIndexName(type) + '-' + partition;
+	}
+
+	private String writeIndexName(String type, String partition) {
+		return partition != null ? partitionIndexName(type, partition) : determineIndexName(type);
+	}
+
+	private String getPartition(Persistable entity) {
+		SearchablePartition partitioning = partitionings.get(ReflectionUtils.getActualClass(entity));
+		if (partitioning == null)
+			return null;
+		Object value = null;
+		try {
+			value = new BeanWrapperImpl(entity).getPropertyValue(partitioning.value());
+		} catch (BeansException e) {
+			logger.warn("Unable to resolve partition {} of {}: {}", partitioning.value(), entity, e.getMessage());
+		}
+		return partitionOf(value, partitioning.interval());
+	}
+
+	static String partitionOf(Object value, SearchablePartition.Interval interval) {
+		LocalDate date = toLocalDate(value);
+		// a fixed partition keeps documents without date at one place whenever they are indexed
+		return date != null ? format(date, interval) : UNDATED_PARTITION;
+	}
+
+	private static String format(LocalDate date, SearchablePartition.Interval interval) {
+		return DateTimeFormatter.ofPattern(interval.getPattern()).format(date);
+	}
+
+	private static LocalDate truncate(LocalDate date, SearchablePartition.Interval interval) {
+		switch (interval) {
+		case YEAR:
+			return date.withDayOfYear(1);
+		case MONTH:
+			return date.withDayOfMonth(1);
+		default:
+			return date;
+		}
+	}
+
+	private static LocalDate next(LocalDate date, SearchablePartition.Interval interval) {
+		switch (interval) {
+		case YEAR:
+			return date.plusYears(1);
+		case MONTH:
+			return date.plusMonths(1);
+		default:
+			return date.plusDays(1);
+		}
+	}
+
+	private static LocalDate toLocalDate(Object value) {
+		if (value instanceof Date)
+			value = Instant.ofEpochMilli(((Date) value).getTime());
+		else if (value instanceof Number)
+			value = Instant.ofEpochMilli(((Number) value).longValue());
+		if (value instanceof Instant)
+			return ((Instant) value).atZone(ZoneId.systemDefault()).toLocalDate();
+		if (value instanceof LocalDate)
+			return (LocalDate) value;
+		if (value instanceof LocalDateTime)
+			return ((LocalDateTime) value).toLocalDate();
+		if (value instanceof String) {
+			String s = (String) value;
+			try {
+				return s.length() > 10 ? Instant.parse(s).atZone(ZoneId.systemDefault()).toLocalDate()
+						: LocalDate.parse(s);
+			} catch (DateTimeParseException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String getRouting(Persistable entity) {
+		String path = routingPaths.get(ReflectionUtils.getActualClass(entity));
+		if (path == null)
+			return null;
+		return routingOf(entity, entity, path);
+	}
+
+	private String routingOf(Persistable entity, Object bean, String path) {
+		Object value = null;
+		if (bean != null && path.isEmpty()) {
+			value = bean;
+		} else if (bean != null) {
+			try {
+				value = new BeanWrapperImpl(bean).getPropertyValue(path);
+			} catch (NullValueInNestedPathException e) {
+			} catch (BeansException e) {
+				logger.warn("Unable to resolve routing {} of {}: {}", path, entity, e.getMessage());
+			}
+		}
+		// routing is required by mapping, documents without routing value are routed by id
+		return value != null ? String.valueOf(value) : String.valueOf(entity.getId());
+	}
+
+	private IndexOperation relocate(IndexOperation operation, Persistable entity) {
+		Class clazz = ReflectionUtils.getActualClass(entity);
+		SearchablePartition partitioning = partitionings.get(clazz);
+		String routingPath = routingPaths.get(clazz);
+		if (partitioning == null && routingPath == null)
+			return operation;
+		String routingProperty = routingPath != null ? StringUtils.substringBefore(routingPath, ".") : null;
+		Set<String> names = new HashSet<>();
+		if (partitioning != null)
+			names.add(partitioning.value());
+		if (routingProperty != null)
+			names.add(routingProperty);
+		Map<String, Object> loaded = dirtyPropertyTracker.getLoadedValues(entity, names);
+		if (loaded == null)
+			return operation;
+		String formerPartition = partitioning != null
+				? partitionOf(loaded.get(partitioning.value()), partitioning.interval())
+				: null;
+		String formerRouting = routingPath != null ? routingOf(entity, loaded.get(routingProperty),
+				StringUtils.substringAfter(routingPath, ".")) : null;
+		return operation.relocateFrom(formerRouting, formerPartition);
+	}
+
 	@Override
 	public Object searchHitToEntity(SearchHit sh) throws Exception {
-		return objectMapper.readValue(sh.getSourceAsString(), typeToClass(sh.getType()));
+		BytesReference source = sh.getSourceRef();
+		if (source == null)
+			return null;
+		ObjectReader reader = objectReaders.get(sh.getType());
+		if (reader == null)
+			reader = objectReaders.computeIfAbsent(sh.getType(), type -> entityReader(typeToClass(type)));
+		BytesRef ref = source.toBytesRef();
+		return reader.readValue(ref.bytes, ref.offset, ref.length);
 	}
 
 	@Override
 	public ListenableActionFuture<IndexResponse> index(Persistable entity) {
-		String type = classToType(ReflectionUtils.getActualClass(entity));
-		return client.prepareIndex(determineIndexName(type), type, String.valueOf(entity.getId()))
-				.setSource(entityToDocument(entity), XContentType.JSON).execute();
+		IndexOperation operation = prepareIndex(entity);
+		if (operation.isRelocated())
+			return executeRelocated(operation);
+		String type = operation.getType();
+		String rebuilding = rebuildingIndices.get(type);
+		if (rebuilding != null)
+			client.prepareIndex(rebuilding, type, operation.getId()).setRouting(operation.getRouting())
+					.setSource(operation.getSource(), XContentType.JSON).execute(mirroring(operation, rebuilding));
+		searchMetrics.recordOperation(IndexOperation.Action.INDEX, type);
+		ListenableActionFuture<IndexResponse> future = client
+				.prepareIndex(writeIndexName(type, operation.getPartition()), type, operation.getId())
+				.setRouting(operation.getRouting()).setSource(operation.getSource(), XContentType.JSON).execute();
+		future.addListener(invalidating(Collections.singleton(type)));
+		return future;
 	}
 
 	@Override
 	public ListenableActionFuture<DeleteResponse> delete(Persistable entity) {
+		IndexOperation operation = prepareDelete(entity);
+		if (operation.isRelocated())
+			return executeRelocated(operation);
+		String type = operation.getType();
+		String rebuilding = rebuildingIndices.get(type);
+		if (rebuilding != null)
+			client.prepareDelete(rebuilding, type, operation.getId()).setRouting(operation.getRouting())
+					.execute(mirroring(operation, rebuilding));
+		searchMetrics.recordOperation(IndexOperation.Action.DELETE, type);
+		ListenableActionFuture<DeleteResponse> future = client
+				.prepareDelete(writeIndexName(type, operation.getPartition()), type, operation.getId())
+				.setRouting(operation.getRouting()).execute();
+		future.addListener(invalidating(Collections.singleton(type)));
+		return future;
+	}
+
+	@Override
+	public IndexOperation prepareIndex(Persistable entity) {
 		String type = classToType(ReflectionUtils.getActualClass(entity));
-		return client.prepareDelete(determineIndexName(type), type, String.valueOf(entity.getId())).execute();
+		return relocate(new IndexOperation(IndexOperation.Action.INDEX, type, String.valueOf(entity.getId()),
+				entityToDocument(entity), getRouting(entity), getPartition(entity)), entity);
 	}
 
-	private void initialize() {
-		IndicesAdminClient adminClient = client.admin().indices();
-		for (Map.Entry<Class, Map<String, Object>> entry : schemaMapping.entrySet()) {
-			HashMap<String, Map<String, Object>> map = new HashMap<>();
-			String type = classToType(entry.getKey());
-			try {
-				IndicesExistsResponse ies = adminClient.exists(new IndicesExistsRequest(determineIndexName(type)))
-						.get();
-				if (!ies.isExists())
-					adminClient.create(new CreateIndexRequest(determineIndexName(type))).get();
-			} catch (Exception e) {
-				logger.error(e.getMessage(), e);
+	@Override
+	public IndexOperation prepareUpdate(Persistable entity, Collection<String> properties) {
+		Class clazz = ReflectionUtils.getActualClass(entity);
+		String type = classToType(clazz);
+		DocumentSerializer serializer = getDocumentSerializer(clazz);
+		if (properties == null || rebuildingIndices.containsKey(type) || !isPartiallyUpdatable(clazz, serializer))
+			return prepareIndex(entity);
+		SearchablePartition partitioning = partitionings.get(clazz);
+		String routingPath = routingPaths.get(clazz);
+		Set<String> names = new LinkedHashSet<>();
+		for (String name : properties) {
+			// document location or nested objects changed, the whole document should be replaced
+			if (serializer.isComponent(name) || partitioning != null && partitioning.value().equals(name)
+					|| routingPath != null && routingPath.split("\\.")[0].equals(name))
+				return prepareIndex(entity);
+			if (serializer.hasProperty(name))
+				names.add(name);
+		}
+		if (names.isEmpty())
+			return null;
+		byte[] document;
+		try {
+			document = serializer.serialize(entity, names);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			return prepareIndex(entity);
+		}
+		// digest of the merged document is unknown, it will be rechecked as unverified by verify
+		return new IndexOperation(IndexOperation.Action.UPDATE, type, String.valueOf(entity.getId()),
+				appendField(document, DIGEST_FIELD, "null"), getRouting(entity), getPartition(entity));
+	}
+
+	// changes of searchable properties not mapped by hibernate are not reported as dirty properties
+	private boolean isPartiallyUpdatable(Class clazz, DocumentSerializer serializer) {
+		return partiallyUpdatables.computeIfAbsent(clazz, c -> {
+			if (!serializer.isPartiallyUpdatable())
+				return false;
+			Set<String> persistent = dirtyPropertyTracker.getPersistentProperties(c);
+			return persistent != null && persistent.containsAll(serializer.getPropertyNames());
+		});
+	}
+
+	@Override
+	public IndexOperation prepareDelete(Persistable entity) {
+		String type = classToType(ReflectionUtils.getActualClass(entity));
+		return relocate(new IndexOperation(IndexOperation.Action.DELETE, type, String.valueOf(entity.getId()), null,
+				getRouting(entity), getPartition(entity)), entity);
+	}
+
+	private <T extends DocWriteResponse> ListenableActionFuture<T> executeRelocated(IndexOperation operation) {
+		PlainListenableActionFuture<T> future = new PlainListenableActionFuture<>(client.threadPool());
+		execute(Collections.singletonList(operation)).addListener(new ActionListener<BulkResponse>() {
+			@Override
+			public void onResponse(BulkResponse response) {
+				BulkItemResponse item = response.getItems()[0];
+				if (item.isFailed())
+					future.onFailure(item.getFailure().getCause());
+				else
+					future.onResponse(item.getResponse());
 			}
-			map.put(type, entry.getValue());
-			String mapping = JsonUtils.toJson(map);
-			if (logger.isDebugEnabled())
-				logger.debug("Mapping {} : {}", entry.getKey(), mapping);
-			try {
-				adminClient.preparePutMapping(determineIndexName(type)).setType(type)
-						.setSource(mapping, XContentType.JSON).execute().get();
-			} catch (Exception e) {
-				logger.error(e.getMessage(), e);
+
+			@Override
+			public void onFailure(Exception e) {
+				future.onFailure(e);
 			}
-		}
+		});
+		return future;
 	}
 
 	@Override
-	@Trigger
-	public void rebuild() {
-		String lockName = "indexManager.rebuild()";
-		if (lockService.tryLock(lockName)) {
-			try {
-				logger.info("rebuild started");
-				long time = System.currentTimeMillis();
-				IndicesAdminClient adminClient = client.admin().indices();
-				for (Map.Entry<Class, Map<String, Object>> entry : schemaMapping.entrySet()) {
-					String type = classToType(entry.getKey());
-					try {
-						IndicesExistsResponse ies = adminClient
-								.exists(new IndicesExistsRequest(determineIndexName(type))).get();
-						if (!ies.isExists())
-							adminClient.delete(new DeleteIndexRequest(determineIndexName(type))).get();
-					} catch (Exception e) {
-						logger.error(e.getMessage(), e);
-					}
-				}
-				initialize();
-				for (Class c : schemaMapping.keySet())
-					indexAll(classToType(c));
-				logger.info("rebuild completed in {} ms", System.currentTimeMillis() - time);
-			} finally {
-				lockService.unlock(lockName);
+	public ListenableActionFuture<BulkResponse> execute(Collection<IndexOperation> operations) {
+		BulkRequestBuilder bulkRequest = client.prepareBulk();
+		List<DocWriteRequest> requests = new ArrayList<>(operations.size());
+		List<DocWriteRequest> relocations = new ArrayList<>();
+		List<DocWriteRequest> rebuildingRequests = new ArrayList<>();
+		Set<String> types = new HashSet<>();
+		for (IndexOperation operation : operations) {
+			requests.add(toRequest(operation, writeIndexName(operation.getType(), operation.getPartition())));
+			String rebuilding = rebuildingIndices.get(operation.getType());
+			if (operation.isRelocated()) {
+				relocations.add(new DeleteRequest(writeIndexName(operation.getType(), operation.getFormerPartition()),
+						operation.getType(), operation.getId()).routing(operation.getFormerRouting()));
+				if (rebuilding != null)
+					relocations.add(new DeleteRequest(rebuilding, operation.getType(), operation.getId())
+							.routing(operation.getFormerRouting()));
 			}
+			if (rebuilding != null)
+				rebuildingRequests.add(toRequest(operation, rebuilding));
+			types.add(operation.getType());
+			searchMetrics.recordOperation(operation.getAction(), operation.getType());
 		}
+		// removals from former location should precede, same shard may be targeted by both
+		for (DocWriteRequest request : relocations)
+			bulkRequest.request().add(request);
+		for (DocWriteRequest request : requests)
+			bulkRequest.request().add(request);
+		for (DocWriteRequest request : rebuildingRequests)
+			bulkRequest.request().add(request);
+		int actions = bulkRequest.request().numberOfActions();
+		long bytes = bulkRequest.request().estimatedSizeInBytes();
+		long start = System.nanoTime();
+		ListenableActionFuture<BulkResponse> future = bulkRequest.execute();
+		future.addListener(invalidating(types));
+		future.addListener(new ActionListener<BulkResponse>() {
+			@Override
+			public void onResponse(BulkResponse response) {
+				int failures = 0;
+				if (response.hasFailures())
+					for (BulkItemResponse item : response.getItems())
+						if (item.isFailed())
+							failures++;
+				searchMetrics.recordBulk(actions, bytes, failures, System.nanoTime() - start);
+			}
+
+			@Override
+			public void onFailure(Exception e) {
+				searchMetrics.recordBulk(actions, bytes, actions, System.nanoTime() - start);
+			}
+		});
+		if (relocations.isEmpty())
+			return future;
+		// keep items of operations aligned with responses
+		int offset = relocations.size();
+		int count = requests.size();
+		PlainListenableActionFuture<BulkResponse> aligned = new PlainListenableActionFuture<>(client.threadPool());
+		future.addListener(new ActionListener<BulkResponse>() {
+			@Override
+			public void onResponse(BulkResponse response) {
+				BulkItemResponse[] items = response.getItems();
+				for (int i = 0; i < offset; i++)
+					if (items[i].isFailed())
+						logger.error("Unable to remove relocated document {} from {}: {}", items[i].getId(),
+								items[i].getIndex(), items[i].getFailureMessage());
+				aligned.onResponse(new BulkResponse(Arrays.copyOfRange(items, offset, offset + count),
+						response.getTookInMillis()));
+			}
+
+			@Override
+			public void onFailure(Exception e) {
+				aligned.onFailure(e);
+			}
+		});
+		return aligned;
 	}
 
-	@Override
-	public void indexAll(String type) {
-		Class clz = typeToClass(type);
-		entityManager.setEntityClass(clz);
+	// failed writes to the rebuilding index are replayed through the outbox, which writes both indices again
+	private <T> ActionListener<T> mirroring(IndexOperation operation, String indexName) {
+		return ActionListener.wrap(response -> {
+		}, e -> {
+			logger.error("Unable to write {} to rebuilding index {}: {}", operation, indexName, e.getMessage());
+			if (indexOutbox.isEnabled())
+				indexOutbox.append(operation);
+		});
+	}
+
+	private <T> ActionListener<T> invalidating(Collection<String> types) {
+		// invalidate once acknowledged, search result cache takes care of the pending refresh
+		return ActionListener.wrap(response -> {
+			for (String type : types)
+				searchResultCache.invalidate(type);
+		}, e -> {
+			for (String type : types)
+				searchResultCache.invalidate(type);
+		});
+	}
+
+	private static DocWriteRequest toRequest(IndexOperation operation, String indexName) {
+		if (operation.getAction() == IndexOperation.Action.DELETE)
+			return new DeleteRequest(indexName, operation.getType(), operation.getId())
+					.routing(operation.getRouting());
+		if (operation.getAction() == IndexOperation.Action.UPDATE)
+			return new UpdateRequest(indexName, operation.getType(), operation.getId())
+					.routing(operation.getRouting()).doc(operation.getSource(), XContentType.JSON);
+		return new IndexRequest(indexName, operation.getType(), operation.getId()).routing(operation.getRouting())
+				.source(operation.getSource(), XContentType.JSON);
+	}
+
+	private static IndexOperation toOperation(DocWriteRequest request) {
+		String prefix = INDEX_PREFIX + request.type().toLowerCase() + '-';
+		String partition = request.index().startsWith(prefix) ? request.index().substring(prefix.length()) : null;
+		if (request instanceof DeleteRequest)
+			return new IndexOperation(IndexOperation.Action.DELETE, request.type(), request.id(), null,
+					request.routing(), partition);
+		if (request instanceof UpdateRequest)
+			return new IndexOperation(IndexOperation.Action.UPDATE, request.type(), request.id(),
+					BytesReference.toBytes(((UpdateRequest) request).doc().source()), request.routing(), partition);
+		return new IndexOperation(IndexOperation.Action.INDEX, request.type(), request.id(),
+				BytesReference.toBytes(((IndexRequest) request).source()), request.routing(), partition);
+	}
+
+	private void initializeMetadata() {
+		// metadata documents are only fetched by id, nothing should be mapped from their varying payloads
+		IndicesAdminClient adminClient = client.admin().indices();
+		try {
+			if (adminClient.prepareExists(METADATA_INDEX).get().isExists()) {
+				for (String kind : METADATA_KINDS)
+					adminClient.preparePutMapping(METADATA_INDEX).setType(kind).setSource("{\"dynamic\":false}",
+							XContentType.JSON).get();
+				return;
+			}
+			CreateIndexRequestBuilder request = adminClient.prepareCreate(METADATA_INDEX);
+			for (String kind : METADATA_KINDS)
+				request.addMapping(kind, "{\"" + kind + "\":{\"dynamic\":false}}", XContentType.JSON);
+			request.get();
+		} catch (ResourceAlreadyExistsException e) {
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private void initialize() {
+		if (schemaMapping.isEmpty())
+			return;
 		long time = System.currentTimeMillis();
-		final AtomicLong indexed = new AtomicLong();
-		entityManager.iterate(500, (entityArray, session) -> {
-			BulkRequestBuilder bulkRequest = client.prepareBulk();
-			indexed.addAndGet(entityArray.length);
-			for (Object obj : entityArray) {
-				Persistable p = (Persistable) obj;
-				bulkRequest.add(client.prepareIndex(determineIndexName(type), type, String.valueOf(p.getId()))
-						.setSource(entityToDocument(p), XContentType.JSON));
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(mappingCheckConcurrency, schemaMapping.size())), r -> {
+					Thread t = new Thread(r, "index-mapping-check");
+					t.setDaemon(true);
+					return t;
+				});
+		try {
+			List<CompletableFuture<Void>> futures = new ArrayList<>(schemaMapping.size());
+			for (Class clazz : schemaMapping.keySet())
+				futures.add(CompletableFuture.runAsync(() -> initialize(clazz), executor));
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+		} finally {
+			executor.shutdown();
+		}
+		logger.info("Checked mappings of {} types in {} ms", schemaMapping.size(), System.currentTimeMillis() - time);
+		if (!mappingConflicts.isEmpty())
+			logger.error("Mappings of {} are incompatible with existing indices and need rebuild",
+					mappingConflicts.keySet());
+	}
+
+	private void initialize(Class clazz) {
+		IndicesAdminClient adminClient = client.admin().indices();
+		String type = classToType(clazz);
+		String indexName = determineIndexName(type);
+		boolean partitioned = partitionings.containsKey(clazz);
+		try {
+			restoreBulkLoad(type);
+			if (!partitioned)
+				restoreRebuilding(type);
+			if (partitioned)
+				adminClient.preparePutTemplate(indexName).setTemplate(indexName + "-*").addAlias(new Alias(indexName))
+						.addMapping(type, getMappingSource(clazz), XContentType.JSON).get();
+			IndicesExistsResponse ies = adminClient.exists(new IndicesExistsRequest(indexName)).get();
+			if (!ies.isExists()) {
+				if (partitioned)
+					return;
+				adminClient.create(new CreateIndexRequest(newGenerationIndexName(type)).alias(new Alias(indexName))
+						.mapping(type, getMappingSource(clazz), XContentType.JSON)).get();
+				return;
 			}
-			try {
-				if (bulkRequest.numberOfActions() > 0) {
-					BulkResponse br = bulkRequest.execute().get();
-					if (br.hasFailures())
-						logger.error(br.buildFailureMessage());
+			Map<String, Object> existing = null;
+			for (ObjectCursor<ImmutableOpenMap<String, MappingMetaData>> cursor : adminClient
+					.prepareGetMappings(indexName).setTypes(type).get().getMappings().values()) {
+				MappingMetaData mmd = cursor.value.get(type);
+				if (mmd != null)
+					existing = mmd.sourceAsMap();
+			}
+			if (existing != null) {
+				Object meta = existing.get("_meta");
+				if (meta instanceof Map && mappingHashes.get(clazz).equals(((Map) meta).get(MAPPING_HASH))) {
+					logger.debug("Mapping of {} is up to date", type);
+					return;
+				}
+				List<String> conflicts = new ArrayList<>();
+				findConflicts("", existing, schemaMapping.get(clazz), conflicts);
+				Object routing = existing.get("_routing");
+				boolean routingRequired = routing instanceof Map
+						&& "true".equals(String.valueOf(((Map) routing).get("required")));
+				if (routingRequired != routingPaths.containsKey(clazz))
+					conflicts.add("_routing.required: " + routingRequired + " -> " + !routingRequired);
+				if (!conflicts.isEmpty()) {
+					mappingConflicts.put(type, conflicts);
+					logger.error("Mapping of {} is incompatible with {}: {}", type, indexName, conflicts);
+					if (rebuildOnMappingConflict && !partitioned)
+						new Thread(() -> {
+							String lockName = "indexManager.rebuild()";
+							if (lockService.tryLock(lockName)) {
+								try {
+									rebuild(type);
+								} catch (Exception e) {
+									logger.error("rebuild " + type + " failed", e);
+								} finally {
+									lockService.unlock(lockName);
+								}
+							}
+						}, "index-rebuild-" + type).start();
+					return;
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
-		});
-		logger.info("indexed {} in {} ms for {}", indexed.get(), System.currentTimeMillis() - time, type);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+		putMapping(indexName, clazz);
+	}
+
+	private void restoreRebuilding(String type) {
+		// keep writing into the generation of an interrupted rebuild until it is resumed or cancelled
+		GetResponse checkpoint = getMetadata(CHECKPOINT, type);
+		if (checkpoint == null)
+			return;
+		Map<String, Object> source = checkpoint.getSource();
+		String generation = (String) source.get("generation");
+		if (!Boolean.TRUE.equals(source.get("swapped"))
+				&& mappingHashes.get(typeToClass(type)).equals(source.get(MAPPING_HASH))
+				&& client.admin().indices().prepareExists(generation).get().isExists()) {
+			rebuildingIndices.put(type, generation);
+			logger.info("Rebuild of {} into {} is interrupted, writes go to both indices", type, generation);
+		}
+	}
+
+	private static void findConflicts(String path, Map<String, Object> existing, Map<String, Object> mapping,
+			List<String> conflicts) {
+		Object existingProperties = existing.get("properties");
+		Object properties = mapping.get("properties");
+		if (!(existingProperties instanceof Map) || !(properties instanceof Map))
+			return;
+		for (Map.Entry<String, Object> entry : ((Map<String, Object>) properties).entrySet()) {
+			Object current = ((Map) existingProperties).get(entry.getKey());
+			if (!(current instanceof Map))
+				continue;
+			String name = path + entry.getKey();
+			Object value = entry.getValue();
+			if (value instanceof PropertyMapping) {
+				PropertyMapping pm = (PropertyMapping) value;
+				Map<String, Object> cm = (Map<String, Object>) current;
+				checkAttribute(name, "type", pm.getType(), cm.get("type"), conflicts);
+				checkAttribute(name, "analyzer", pm.getAnalyzer(), cm.get("analyzer"), conflicts);
+				checkAttribute(name, "index", pm.getIndex(), cm.get("index"), conflicts);
+				checkAttribute(name, "store", pm.getStore(), cm.get("store"), conflicts);
+				checkAttribute(name, "format", pm.getFormat(), cm.get("format"), conflicts);
+			} else if (value instanceof Map) {
+				findConflicts(name + '.', (Map<String, Object>) current, (Map<String, Object>) value, conflicts);
+			}
+		}
+	}
+
+	private static void checkAttribute(String name, String attribute, Object expected, Object actual,
+			List<String> conflicts) {
+		String e = expected != null ? expected.toString() : null;
+		String a = actual != null ? actual.toString() : null;
+		if ("index".equals(attribute) || "store".equals(attribute)) {
+			if (e == null && "true".equals(a) || "true".equals(e) && a == null)
+				return;
+			if (e == null && "false".equals(a) && "store".equals(attribute))
+				return;
+		}
+		if (!Objects.equals(e, a))
+			conflicts.add(name + '.' + attribute + ": " + a + " -> " + e);
+	}
+
+	public Map<String, List<String>> getMappingConflicts() {
+		return Collections.unmodifiableMap(mappingConflicts);
+	}
+
+	private String getMappingSource(Class clazz) {
+		Map<String, Object> mapping = new HashMap<>(schemaMapping.get(clazz));
+		mapping.put("_meta", Collections.singletonMap(MAPPING_HASH, mappingHashes.get(clazz)));
+		HashMap<String, Map<String, Object>> map = new HashMap<>();
+		map.put(classToType(clazz), mapping);
+		return JsonUtils.toJson(map);
+	}
+
+	private static String hash(Map<String, Object> mapping) {
+		try {
+			ObjectMapper canonical = new ObjectMapper();
+			canonical.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+			Map<String, Object> tree = canonical.readValue(JsonUtils.toJson(mapping), Map.class);
+			return DigestUtils.sha256Hex(canonical.writeValueAsBytes(tree));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void putMapping(String indexName, Class clazz) {
+		String type = classToType(clazz);
+		String mapping = getMappingSource(clazz);
+		if (logger.isDebugEnabled())
+			logger.debug("Mapping {} : {}", clazz, mapping);
+		try {
+			client.admin().indices().preparePutMapping(indexName).setType(type).setSource(mapping, XContentType.JSON)
+					.execute().get();
+			mappingConflicts.remove(type);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private String newGenerationIndexName(String type) {
+		String alias = determineIndexName(type);
+		IndicesAdminClient adminClient = client.admin().indices();
+		long timestamp = System.currentTimeMillis();
+		while (true) {
+			String name = alias + '_' + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date(timestamp));
+			// names have second granularity, take the next free second if taken
+			if (!adminClient.prepareExists(name).get().isExists())
+				return name;
+			timestamp += 1000;
+		}
+	}
+
+	@Override
+	@Trigger
+	public void rebuild() {
+		String lockName = "indexManager.rebuild()";
+		if (lockService.tryLock(lockName)) {
+			try {
+				logger.info("rebuild started");
+				long time = System.currentTimeMillis();
+				stopRequest = null;
+				Map<String, RebuildProgress> progresses = new ConcurrentHashMap<>();
+				for (Class c : schemaMapping.keySet())
+					progresses.put(classToType(c), new RebuildProgress(classToType(c)));
+				rebuildProgress = progresses;
+				boolean completed = true;
+				for (Class c : schemaMapping.keySet()) {
+					String type = classToType(c);
+					RebuildProgress.Status stop = stopRequest;
+					if (stop != null) {
+						progresses.get(type).setStatus(stop);
+						completed = false;
+						continue;
+					}
+					try {
+						rebuild(type, true);
+					} catch (Exception e) {
+						completed = false;
+						logger.error("rebuild " + type + " failed", e);
+					}
+					if (progresses.get(type).getStatus() != RebuildProgress.Status.COMPLETED)
+						completed = false;
+				}
+				// types already swapped are skipped until every type is rebuilt
+				if (completed || stopRequest == RebuildProgress.Status.CANCELLED)
+					for (Class c : schemaMapping.keySet())
+						if (!rebuildingIndices.containsKey(classToType(c)))
+							deleteMetadata(CHECKPOINT, classToType(c));
+				logger.info("rebuild {} in {} ms", stopRequest != null ? stopRequest.name().toLowerCase() : "completed",
+						System.currentTimeMillis() - time);
+			} finally {
+				lockService.unlock(lockName);
+			}
+		}
+	}
+
+	@Override
+	public Map<String, RebuildProgress> getRebuildProgress() {
+		return Collections.unmodifiableMap(rebuildProgress);
+	}
+
+	@Override
+	public void pauseRebuild() {
+		stopRequest = RebuildProgress.Status.PAUSED;
+	}
+
+	@Override
+	public void cancelRebuild() {
+		stopRequest = RebuildProgress.Status.CANCELLED;
+		// discard paused or interrupted rebuilds if none is running
+		String lockName = "indexManager.rebuild()";
+		if (lockService.tryLock(lockName)) {
+			try {
+				for (Map.Entry<String, String> entry : new HashMap<>(rebuildingIndices).entrySet()) {
+					String type = entry.getKey();
+					rebuildingIndices.remove(type);
+					deleteMetadata(CHECKPOINT, type);
+					RebuildProgress progress = rebuildProgress.get(type);
+					if (progress != null)
+						progress.setStatus(RebuildProgress.Status.CANCELLED);
+					logger.info("rebuild of {} cancelled, deleting {}", type, entry.getValue());
+					try {
+						client.admin().indices().prepareDelete(entry.getValue()).get();
+					} catch (Exception e) {
+						logger.error(e.getMessage(), e);
+					}
+				}
+			} finally {
+				lockService.unlock(lockName);
+			}
+		}
+	}
+
+	private void rebuild(String type) throws Exception {
+		rebuild(type, false);
+	}
+
+	private void rebuild(String type, boolean retainCompleted) throws Exception {
+		IndicesAdminClient adminClient = client.admin().indices();
+		String alias = determineIndexName(type);
+		Class clazz = typeToClass(type);
+		RebuildProgress progress = rebuildProgress.get(type);
+		if (progress == null) {
+			progress = new RebuildProgress(type);
+			rebuildProgress.put(type, progress);
+		}
+		if (partitionings.containsKey(clazz)) {
+			rebuildPartitions(type, progress);
+			return;
+		}
+		RebuildTask task = resumeRebuild(type);
+		if (task != null && task.swapped) {
+			progress.setGeneration(task.generation);
+			progress.setResumedFrom(task.indexed);
+			progress.setIndexed(task.indexed);
+			progress.setFailed(task.failed);
+			progress.setStatus(RebuildProgress.Status.COMPLETED);
+			logger.info("Skipping {} which is rebuilt into {} already", type, task.generation);
+			return;
+		}
+		if (task == null) {
+			task = new RebuildTask(type, newGenerationIndexName(type), Instant.now().minusMillis(syncClockSkew));
+			adminClient.prepareCreate(task.generation).setSettings(bulkLoadSettings()).get();
+			putMapping(task.generation, clazz);
+		}
+		task.progress = progress;
+		entityManager.setEntityClass(clazz);
+		progress.setGeneration(task.generation);
+		progress.setTotal(entityManager.countAll());
+		progress.setResumedFrom(task.indexed);
+		progress.setIndexed(task.indexed);
+		progress.setFailed(task.failed);
+		progress.setStatus(RebuildProgress.Status.RUNNING);
+		String generation = task.generation;
+		boolean swapped = false;
+		boolean keep = false;
+		try {
+			rebuildingIndices.put(type, generation);
+			IndexingSummary summary = indexAll(type, generation, null, task);
+			if (summary.getFailed() > 0)
+				logger.warn("{} documents failed while rebuilding {}", summary.getFailed(), generation);
+			Map<String, String> settings = new HashMap<>();
+			for (String key : BULK_LOAD_SETTINGS)
+				settings.put(key, null);
+			settings.put("index.number_of_replicas", String.valueOf(numberOfReplicas));
+			endBulkLoad(type, Collections.singletonMap(generation, settings));
+			IndicesAliasesRequestBuilder aliasesRequest = adminClient.prepareAliases();
+			if (adminClient.prepareAliasesExist(alias).get().exists()) {
+				for (ObjectCursor<String> cursor : adminClient.prepareGetAliases(alias).get().getAliases().keys())
+					aliasesRequest.removeAlias(cursor.value, alias);
+			} else if (adminClient.prepareExists(alias).get().isExists()) {
+				// legacy index is replaced in the same request, so searches always find one of them
+				logger.info("Replacing legacy index {} with alias pointing to {}", alias, generation);
+				aliasesRequest.removeIndex(alias);
+			}
+			aliasesRequest.addAlias(generation, alias).get();
+			swapped = true;
+			searchResultCache.invalidate(type);
+			logger.info("Alias {} is pointing to {} now", alias, generation);
+			if (retainCompleted)
+				saveCheckpoint(task, Collections.emptyList(), task.indexed + summary.getIndexed(),
+						task.failed + summary.getFailed(), true);
+			else
+				deleteMetadata(CHECKPOINT, type);
+			progress.setStatus(RebuildProgress.Status.COMPLETED);
+			advanceWatermark(type, task.start, getMetadata(WATERMARK, type));
+		} catch (Exception e) {
+			if (task.stopped == RebuildProgress.Status.PAUSED) {
+				keep = true;
+				progress.setStatus(task.stopped);
+				logger.info("rebuild of {} paused", type);
+			} else if (task.stopped == RebuildProgress.Status.CANCELLED) {
+				deleteMetadata(CHECKPOINT, type);
+				progress.setStatus(task.stopped);
+				logger.info("rebuild of {} cancelled", type);
+			} else {
+				keep = task.checkpointed && !swapped;
+				progress.setStatus(RebuildProgress.Status.FAILED);
+				throw e;
+			}
+		} finally {
+			// writes keep going to the generation as long as the rebuild is resumable
+			if (!keep)
+				rebuildingIndices.remove(type);
+			if (!swapped && !keep) {
+				logger.warn("Deleting incomplete index {}", generation);
+				try {
+					adminClient.prepareDelete(generation).get();
+				} catch (Exception e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+		}
+		if (swapped && task.resumed) {
+			// changes while the rebuild was down are missing, deletions and types without modify date included
+			try {
+				verify(type, true);
+			} catch (Exception e) {
+				logger.error("verify " + type + " after resumed rebuild failed", e);
+			}
+		}
+		if (swapped)
+			purgeGenerations(type);
+	}
+
+	private void rebuildPartitions(String type, RebuildProgress progress) {
+		// partitions are reindexed in place, new mappings take effect as new partitions are created
+		Class clazz = typeToClass(type);
+		String partitions = determineIndexName(type) + "-*";
+		entityManager.setEntityClass(clazz);
+		progress.setGeneration(partitions);
+		progress.setTotal(entityManager.countAll());
+		progress.setStatus(RebuildProgress.Status.RUNNING);
+		try {
+			IndicesAdminClient adminClient = client.admin().indices();
+			if (adminClient.prepareGetIndex().setIndices(partitions).get().getIndices().length > 0)
+				adminClient.prepareUpdateSettings(partitions)
+						.setSettings(Settings.builder().put("index.blocks.write", false).build()).get();
+			IndexingSummary summary = bulkLoad(type, determineIndexName(type));
+			progress.setIndexed(summary.getIndexed());
+			progress.setFailed(summary.getFailed());
+			progress.setStatus(RebuildProgress.Status.COMPLETED);
+		} catch (RuntimeException e) {
+			progress.setStatus(RebuildProgress.Status.FAILED);
+			throw e;
+		} finally {
+			maintainPartitions(type, partitionings.get(clazz));
+		}
+	}
+
+	@Override
+	@Trigger
+	@Scheduled(cron = "${elasticsearch.partition.cron:0 30 1 * * *}")
+	public void maintainPartitions() {
+		if (partitionings.isEmpty())
+			return;
+		String lockName = "indexManager.maintainPartitions()";
+		if (lockService.tryLock(lockName)) {
+			try {
+				for (Map.Entry<Class, SearchablePartition> entry : partitionings.entrySet()) {
+					String type = classToType(entry.getKey());
+					try {
+						maintainPartitions(type, entry.getValue());
+					} catch (Exception e) {
+						logger.error("maintain partitions of " + type + " failed", e);
+					}
+				}
+			} finally {
+				lockService.unlock(lockName);
+			}
+		}
+	}
+
+	private void maintainPartitions(String type, SearchablePartition partitioning) {
+		IndicesAdminClient adminClient = client.admin().indices();
+		String prefix = determineIndexName(type) + '-';
+		String open = format(Instant.now().minusMillis(partitionCloseDelay).atZone(ZoneId.systemDefault())
+				.toLocalDate(), partitioning.interval());
+		if (adminClient.prepareGetIndex().setIndices(prefix + "*").get().getIndices().length == 0)
+			return;
+		long maxSize = ByteSizeValue.parseBytesSizeValue(partitionMaxSize, "elasticsearch.partition.maxSize")
+				.getBytes();
+		Map<String, IndexStats> stats = adminClient.prepareStats(prefix + "*").setStore(true).get().getIndices();
+		for (ObjectObjectCursor<String, Settings> cursor : adminClient.prepareGetSettings(prefix + "*").get()
+				.getIndexToSettings()) {
+			String index = cursor.key;
+			if ("true".equals(cursor.value.get("index.blocks.write")))
+				continue;
+			String partition = index.substring(prefix.length());
+			if (UNDATED_PARTITION.equals(partition) || partition.compareTo(open) >= 0) {
+				IndexStats is = stats.get(index);
+				if (is != null && is.getPrimaries().getStore().getSizeInBytes() > maxSize)
+					logger.warn("Partition {} exceeds {}, consider a finer interval than {}", index, partitionMaxSize,
+							partitioning.interval());
+				continue;
+			}
+			logger.info("Closing partition {}", index);
+			adminClient.prepareForceMerge(index).setMaxNumSegments(1).get();
+			adminClient.prepareUpdateSettings(index)
+					.setSettings(Settings.builder().put("index.blocks.write", true).build()).get();
+		}
+	}
+
+	private RebuildTask resumeRebuild(String type) {
+		GetResponse checkpoint = getMetadata(CHECKPOINT, type);
+		if (checkpoint == null)
+			return null;
+		Map<String, Object> source = checkpoint.getSource();
+		String generation = (String) source.get("generation");
+		Class clazz = typeToClass(type);
+		if (!mappingHashes.get(clazz).equals(source.get(MAPPING_HASH))
+				|| !client.admin().indices().prepareExists(generation).get().isExists()) {
+			logger.info("Discarding stale rebuild checkpoint of {}", type);
+			deleteMetadata(CHECKPOINT, type);
+			return null;
+		}
+		RebuildTask task = new RebuildTask(type, generation,
+				Instant.ofEpochMilli(((Number) source.get("startedAt")).longValue()));
+		task.resumed = true;
+		task.checkpointed = true;
+		task.indexed = ((Number) source.get("indexed")).longValue();
+		task.failed = ((Number) source.get("failed")).longValue();
+		if (Boolean.TRUE.equals(source.get("swapped"))) {
+			if (!client.admin().indices().prepareGetAliases(determineIndexName(type)).get().getAliases()
+					.containsKey(generation)) {
+				logger.info("Discarding stale rebuild checkpoint of {}", type);
+				deleteMetadata(CHECKPOINT, type);
+				return null;
+			}
+			task.swapped = true;
+			return task;
+		}
+		Class idType = BeanUtils.getPropertyDescriptor(clazz, "id").getPropertyType();
+		SimpleTypeConverter converter = new SimpleTypeConverter();
+		task.partitions = new ArrayList<>();
+		for (Map<String, Object> map : (List<Map<String, Object>>) source.get("partitions")) {
+			Partition partition = new Partition((Serializable) converter.convertIfNecessary(map.get("from"), idType),
+					(Serializable) converter.convertIfNecessary(map.get("to"), idType));
+			partition.lastId = (Serializable) converter.convertIfNecessary(map.get("lastId"), idType);
+			partition.done = Boolean.TRUE.equals(map.get("done"));
+			task.partitions.add(partition);
+		}
+		logger.info("Resuming rebuild of {} into {}", type, generation);
+		return task;
+	}
+
+	private void checkpoint(RebuildTask task, BulkIndexer bulkIndexer, int count) {
+		long since = task.sinceCheckpoint.addAndGet(count);
+		task.progress.setIndexed(task.indexed + bulkIndexer.getIndexed());
+		task.progress.setFailed(task.failed + bulkIndexer.getFailed());
+		RebuildProgress.Status stop = stopRequest;
+		if (stop == null && since < checkpointInterval)
+			return;
+		synchronized (task) {
+			if (stop != null && task.stopped != null)
+				throw new IllegalStateException("rebuild of " + task.type + " is " + stop.name().toLowerCase());
+			if (stop != null || task.sinceCheckpoint.get() >= checkpointInterval) {
+				// snapshot before draining so every recorded id is acknowledged once drained
+				List<Map<String, Object>> partitions = new ArrayList<>(task.partitions.size());
+				for (Partition partition : task.partitions) {
+					Map<String, Object> map = new HashMap<>();
+					map.put("from", partition.from);
+					map.put("to", partition.to);
+					map.put("lastId", partition.lastId);
+					map.put("done", partition.done);
+					partitions.add(map);
+				}
+				bulkIndexer.drain();
+				saveCheckpoint(task, partitions, task.indexed + bulkIndexer.getIndexed(),
+						task.failed + bulkIndexer.getFailed(), false);
+				task.sinceCheckpoint.set(0);
+			}
+			if (stop != null) {
+				task.stopped = stop;
+				throw new IllegalStateException("rebuild of " + task.type + " is " + stop.name().toLowerCase());
+			}
+		}
+	}
+
+	private void saveCheckpoint(RebuildTask task, List<Map<String, Object>> partitions, long indexed, long failed,
+			boolean swapped) {
+		Map<String, Object> source = new HashMap<>();
+		source.put("generation", task.generation);
+		source.put("partitions", partitions);
+		source.put("indexed", indexed);
+		source.put("failed", failed);
+		source.put("swapped", swapped);
+		source.put("startedAt", task.start.toEpochMilli());
+		source.put("updatedAt", System.currentTimeMillis());
+		source.put(MAPPING_HASH, mappingHashes.get(typeToClass(task.type)));
+		client.prepareIndex(METADATA_INDEX, CHECKPOINT, task.type).setSource(source).get();
+		task.checkpointed = true;
+	}
+
+	private void deleteMetadata(String kind, String id) {
+		try {
+			client.prepareDelete(METADATA_INDEX, kind, id).get();
+		} catch (IndexNotFoundException e) {
+		}
+	}
+
+	private static class Partition {
+
+		final Serializable from;
+
+		final Serializable to;
+
+		volatile Serializable lastId;
+
+		volatile boolean done;
+
+		Partition(Serializable from, Serializable to) {
+			this.from = from;
+			this.to = to;
+		}
+
+	}
+
+	private static class RebuildTask {
+
+		final String type;
+
+		final String generation;
+
+		final Instant start;
+
+		RebuildProgress progress;
+
+		boolean resumed;
+
+		boolean swapped;
+
+		volatile boolean checkpointed;
+
+		volatile RebuildProgress.Status stopped;
+
+		List<Partition> partitions;
+
+		long indexed;
+
+		long failed;
+
+		final AtomicLong sinceCheckpoint = new AtomicLong();
+
+		RebuildTask(String type, String generation, Instant start) {
+			this.type = type;
+			this.generation = generation;
+			this.start = start;
+		}
+
+	}
+
+	private void purgeGenerations(String type) {
+		IndicesAdminClient adminClient = client.admin().indices();
+		String alias = determineIndexName(type);
+		try {
+			// alias_* matches indices of other types such as alias_xxx, only alias_yyyyMMddHHmmss are generations
+			Pattern pattern = Pattern.compile(Pattern.quote(alias) + "_\\d{14}");
+			Set<String> current = new HashSet<>();
+			for (ObjectCursor<String> cursor : adminClient.prepareGetAliases(alias).get().getAliases().keys())
+				current.add(cursor.value);
+			List<String> generations = new ArrayList<>();
+			for (String index : adminClient.prepareGetIndex().setIndices(alias + "_*").get().getIndices())
+				if (pattern.matcher(index).matches() && !index.equals(rebuildingIndices.get(type)))
+					generations.add(index);
+			Collections.sort(generations);
+			for (int i = 0; i < generations.size() - generationsRetained; i++) {
+				String index = generations.get(i);
+				if (current.contains(index))
+					continue;
+				logger.info("Deleting expired index {}", index);
+				adminClient.prepareDelete(index).get();
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public IndexingSummary indexAll(String type) {
+		return bulkLoad(type, determineIndexName(type));
+	}
+
+	private IndexingSummary bulkLoad(String type, String indexName) {
+		if (!bulkLoadEnabled)
+			return indexAll(type, indexName, null, null);
+		// a concurrent bulk load would capture the bulk load settings as the settings to restore
+		String lockName = "indexManager.bulkLoad(" + type + ")";
+		if (!lockService.tryLock(lockName))
+			throw new IllegalStateException(type + " is bulk loading");
+		try {
+			restoreBulkLoad(type);
+			Map<String, Map<String, String>> previous = beginBulkLoad(type, indexName);
+			try {
+				return indexAll(type, indexName, null, null);
+			} finally {
+				endBulkLoad(type, previous);
+			}
+		} finally {
+			lockService.unlock(lockName);
+		}
+	}
+
+	private void restoreBulkLoad(String type) {
+		GetResponse bulkLoad = getMetadata(BULK_LOAD, type);
+		if (bulkLoad == null)
+			return;
+		logger.warn("Restoring settings of {} left by an interrupted bulk load", type);
+		Map<String, Map<String, String>> previous = new HashMap<>();
+		for (Map<String, Object> map : (List<Map<String, Object>>) bulkLoad.getSource().get("indices"))
+			previous.put((String) map.get("index"), (Map<String, String>) map.get("settings"));
+		endBulkLoad(type, previous);
+	}
+
+	private static Settings bulkLoadSettings() {
+		return Settings.builder().put("index.refresh_interval", "-1").put("index.number_of_replicas", 0)
+				.put("index.translog.durability", "async").build();
+	}
+
+	private Map<String, Map<String, String>> beginBulkLoad(String type, String indexName) {
+		IndicesAdminClient adminClient = client.admin().indices();
+		Map<String, Map<String, String>> previous = new HashMap<>();
+		try {
+			for (ObjectObjectCursor<String, Settings> cursor : adminClient.prepareGetSettings(indexName).get()
+					.getIndexToSettings()) {
+				Map<String, String> settings = new HashMap<>();
+				for (String key : BULK_LOAD_SETTINGS)
+					settings.put(key, cursor.value.get(key));
+				previous.put(cursor.key, settings);
+			}
+		} catch (IndexNotFoundException e) {
+			return previous;
+		}
+		if (previous.isEmpty())
+			return previous;
+		// persist previous settings first so they can be restored after a crash
+		List<Map<String, Object>> indices = new ArrayList<>(previous.size());
+		for (Map.Entry<String, Map<String, String>> entry : previous.entrySet()) {
+			Map<String, Object> map = new HashMap<>();
+			map.put("index", entry.getKey());
+			map.put("settings", entry.getValue());
+			indices.add(map);
+		}
+		client.prepareIndex(METADATA_INDEX, BULK_LOAD, type).setSource(Collections.singletonMap("indices", indices))
+				.get();
+		adminClient.prepareUpdateSettings(previous.keySet().toArray(new String[previous.size()]))
+				.setSettings(bulkLoadSettings()).get();
+		logger.info("Applied bulk load settings to {}", previous.keySet());
+		return previous;
+	}
+
+	private void endBulkLoad(String type, Map<String, Map<String, String>> previous) {
+		if (previous == null || previous.isEmpty())
+			return;
+		IndicesAdminClient adminClient = client.admin().indices();
+		List<String> restored = new ArrayList<>(previous.size());
+		for (Map.Entry<String, Map<String, String>> entry : previous.entrySet()) {
+			String index = entry.getKey();
+			Settings.Builder builder = Settings.builder();
+			for (Map.Entry<String, String> setting : entry.getValue().entrySet()) {
+				if (setting.getValue() != null)
+					builder.put(setting.getKey(), setting.getValue());
+				else
+					builder.putNull(setting.getKey());
+			}
+			try {
+				adminClient.prepareUpdateSettings(index).setSettings(builder.build()).get();
+				adminClient.prepareRefresh(index).get();
+				restored.add(index);
+			} catch (IndexNotFoundException e) {
+			} catch (Exception e) {
+				logger.error("Restoring settings of " + index + " failed", e);
+				return;
+			}
+		}
+		deleteMetadata(BULK_LOAD, type);
+		logger.info("Restored settings of {}", restored);
+		if (bulkLoadForceMerge)
+			for (String index : restored) {
+				try {
+					adminClient.prepareForceMerge(index).get();
+				} catch (Exception e) {
+					logger.error("Force merging " + index + " failed", e);
+				}
+			}
+	}
+
+	@Override
+	public IndexingSummary indexSince(String type, Instant since) {
+		if (since == null)
+			return indexAll(type);
+		DetachedCriteria dc = modifiedSinceCriteria(typeToClass(type), since);
+		if (dc == null) {
+			logger.warn("{} has no property {}, fallback to full indexing", typeToClass(type), modifyDateProperty);
+			return indexAll(type);
+		}
+		return indexAll(type, determineIndexName(type), dc, null);
+	}
+
+	@Override
+	@Trigger
+	@Scheduled(cron = "${elasticsearch.sync.cron:-}")
+	public void sync() {
+		String lockName = "indexManager.sync()";
+		if (lockService.tryLock(lockName)) {
+			try {
+				for (Class c : schemaMapping.keySet()) {
+					String type = classToType(c);
+					if (BeanUtils.getPropertyDescriptor(c, modifyDateProperty) == null) {
+						logger.debug("Skip syncing {} without property {}", type, modifyDateProperty);
+						continue;
+					}
+					try {
+						sync(type);
+					} catch (Exception e) {
+						logger.error("sync " + type + " failed", e);
+					}
+				}
+			} finally {
+				lockService.unlock(lockName);
+			}
+		}
+	}
+
+	private void sync(String type) {
+		Instant start = Instant.now().minusMillis(syncClockSkew);
+		GetResponse watermark = getMetadata(WATERMARK, type);
+		Instant since = watermark != null
+				? Instant.ofEpochMilli(((Number) watermark.getSource().get("timestamp")).longValue())
+				: null;
+		IndexingSummary summary = indexSince(type, since);
+		if (summary.getFailed() > 0 && !indexOutbox.isEnabled()) {
+			logger.warn("Keep watermark of {} at {} since {} documents failed", type, since, summary.getFailed());
+			return;
+		}
+		advanceWatermark(type, start, watermark);
+	}
+
+	private void advanceWatermark(String type, Instant timestamp, GetResponse previous) {
+		Map<String, Object> source = new HashMap<>();
+		source.put("timestamp", timestamp.toEpochMilli());
+		try {
+			IndexRequestBuilder irb = client.prepareIndex(METADATA_INDEX, WATERMARK, type).setSource(source);
+			if (previous != null)
+				irb.setVersion(previous.getVersion());
+			else
+				irb.setCreate(true);
+			irb.get();
+		} catch (VersionConflictEngineException e) {
+			logger.warn("Watermark of {} was advanced concurrently", type);
+		}
+	}
+
+	private GetResponse getMetadata(String kind, String id) {
+		try {
+			GetResponse response = client.prepareGet(METADATA_INDEX, kind, id).get();
+			return response.isExists() ? response : null;
+		} catch (IndexNotFoundException e) {
+			return null;
+		}
+	}
+
+	private DetachedCriteria modifiedSinceCriteria(Class clazz, Instant since) {
+		if (BeanUtils.getPropertyDescriptor(clazz, modifyDateProperty) == null)
+			return null;
+		Date date = Date.from(since);
+		DetachedCriteria dc = DetachedCriteria.forClass(clazz);
+		if (BeanUtils.getPropertyDescriptor(clazz, createDateProperty) != null)
+			dc.add(Restrictions.or(Restrictions.ge(modifyDateProperty, date), Restrictions
+					.and(Restrictions.isNull(modifyDateProperty), Restrictions.ge(createDateProperty, date))));
+		else
+			dc.add(Restrictions.ge(modifyDateProperty, date));
+		return dc;
+	}
+
+	private IterateCallback callback(String type, String indexName, BulkIndexer bulkIndexer, Partition partition,
+			RebuildTask task) {
+		return (entityArray, session) -> {
+			for (Object obj : entityArray) {
+				Persistable p = (Persistable) obj;
+				String timePartition = getPartition(p);
+				bulkIndexer.add(client
+						.prepareIndex(timePartition != null ? partitionIndexName(type, timePartition) : indexName,
+								type, String.valueOf(p.getId()))
+						.setRouting(getRouting(p)).setSource(entityToDocument(p), XContentType.JSON).request());
+			}
+			if (entityArray.length == 0)
+				return;
+			if (partition != null)
+				partition.lastId = ((Persistable) entityArray[entityArray.length - 1]).getId();
+			if (task != null)
+				checkpoint(task, bulkIndexer, entityArray.length);
+		};
+	}
+
+	private int getPartitionParallelism() {
+		return partitionParallelism > 0 ? partitionParallelism : Runtime.getRuntime().availableProcessors();
+	}
+
+	private List<Partition> partition(Class clz) {
+		List<Partition> partitions = new ArrayList<>();
+		int parallelism = getPartitionParallelism();
+		Class idType = BeanUtils.getPropertyDescriptor(clz, "id").getPropertyType();
+		boolean numeric = idType == Long.class || idType == long.class || idType == Integer.class
+				|| idType == int.class;
+		if (parallelism > 1 && numeric && entityManager.countAll() >= partitionThreshold) {
+			DetachedCriteria dc = DetachedCriteria.forClass(clz)
+					.setProjection(Projections.projectionList().add(Projections.min("id")).add(Projections.max("id")));
+			Object[] range = (Object[]) entityManager.findListByCriteria(dc).get(0);
+			if (range[0] != null && range[1] != null) {
+				long min = ((Number) range[0]).longValue();
+				long max = ((Number) range[1]).longValue();
+				int n = (int) Math.min((long) parallelism * PARTITIONS_PER_WORKER, max - min + 1);
+				long step = (max - min + n) / n;
+				for (int i = 0; i < n; i++) {
+					Serializable from = i == 0 ? null : toId(min + i * step, idType);
+					Serializable to = i == n - 1 ? null : toId(min + (i + 1) * step, idType);
+					partitions.add(new Partition(from, to));
+				}
+				return partitions;
+			}
+		}
+		partitions.add(new Partition(null, null));
+		return partitions;
+	}
+
+	private static Serializable toId(long value, Class idType) {
+		if (idType == Integer.class || idType == int.class)
+			return (int) value;
+		return value;
+	}
+
+	private void indexPartitions(Class clz, String type, String indexName, List<Partition> partitions,
+			BulkIndexer bulkIndexer, RebuildTask task) throws Exception {
+		Queue<Partition> queue = new ConcurrentLinkedQueue<>();
+		for (Partition partition : partitions)
+			if (!partition.done)
+				queue.add(partition);
+		int workers = Math.min(getPartitionParallelism(), queue.size());
+		AtomicInteger active = new AtomicInteger(workers);
+		if (workers <= 1) {
+			indexPartitions(clz, type, indexName, queue, active, bulkIndexer, task);
+			return;
+		}
+		logger.info("indexing {} in {} partitions with {} workers", type, queue.size(), workers);
+		AtomicInteger counter = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "index-partition-" + type + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			List<Future<?>> futures = new ArrayList<>(workers);
+			for (int i = 0; i < workers; i++)
+				futures.add(executor.submit(() -> {
+					entityManager.setEntityClass(clz);
+					try {
+						indexPartitions(clz, type, indexName, queue, active, bulkIndexer, task);
+					} catch (RuntimeException e) {
+						queue.clear();
+						throw e;
+					}
+					return null;
+				}));
+			Exception failure = null;
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+			if (failure != null)
+				throw failure;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void indexPartitions(Class clz, String type, String indexName, Queue<Partition> queue,
+			AtomicInteger active, BulkIndexer bulkIndexer, RebuildTask task) {
+		long rejected = bulkIndexer.getRejected();
+		Partition partition;
+		while ((partition = queue.poll()) != null) {
+			IterateCallback callback = callback(type, indexName, bulkIndexer, partition, task);
+			if (task == null && partition.from == null && partition.to == null) {
+				entityManager.iterate(bulkActions, callback);
+			} else {
+				DetachedCriteria dc = DetachedCriteria.forClass(clz).addOrder(Order.asc("id"));
+				if (partition.lastId != null)
+					dc.add(Restrictions.gt("id", partition.lastId));
+				else if (partition.from != null)
+					dc.add(Restrictions.ge("id", partition.from));
+				if (partition.to != null)
+					dc.add(Restrictions.lt("id", partition.to));
+				entityManager.iterate(bulkActions, callback, dc);
+			}
+			partition.done = true;
+			long current = bulkIndexer.getRejected();
+			if (current > rejected) {
+				int workers = active.get();
+				if (workers > 1 && active.compareAndSet(workers, workers - 1)) {
+					logger.info("{} bulk items rejected, reducing workers of {} to {}", current - rejected, type,
+							workers - 1);
+					return;
+				}
+			}
+			rejected = current;
+		}
+	}
+
+	private BulkIndexer createBulkIndexer() {
+		BulkIndexer bulkIndexer = new BulkIndexer(client, bulkActions, bulkSizeInBytes, bulkConcurrency);
+		bulkIndexer.setMetrics(searchMetrics);
+		bulkIndexer.setAdaptive(bulkAdaptive);
+		bulkIndexer.setTargetLatency(bulkTargetLatency);
+		bulkIndexer.setMaxRetries(bulkMaxRetries);
+		bulkIndexer.setRetryBackoff(bulkRetryBackoff);
+		if (indexOutbox.isEnabled())
+			bulkIndexer.setFailedRequestHandler(request -> indexOutbox.append(toOperation(request)));
+		return bulkIndexer;
+	}
+
+	@Override
+	@Trigger
+	@Scheduled(cron = "${elasticsearch.verify.cron:-}")
+	public void verify() {
+		String lockName = "indexManager.verify()";
+		if (lockService.tryLock(lockName)) {
+			try {
+				for (Class c : schemaMapping.keySet()) {
+					String type = classToType(c);
+					try {
+						verify(type, verifyRepair);
+					} catch (Exception e) {
+						logger.error("verify " + type + " failed", e);
+					}
+				}
+			} finally {
+				lockService.unlock(lockName);
+			}
+		}
+	}
+
+	@Override
+	public ConsistencyReport verify(String type, boolean repair) {
+		if (rebuildingIndices.containsKey(type))
+			throw new IllegalStateException(type + " is rebuilding");
+		Class clazz = typeToClass(type);
+		String indexName = determineIndexName(type);
+		long time = System.currentTimeMillis();
+		ConsistencyReport report = new ConsistencyReport(type, repair);
+		BulkIndexer bulkIndexer = repair ? createBulkIndexer() : null;
+		try {
+			entityManager.setEntityClass(clazz);
+			entityManager.iterate(verifyChunkSize, (entityArray, session) -> {
+				if (entityArray.length == 0)
+					return;
+				String[] ids = new String[entityArray.length];
+				byte[][] documents = new byte[entityArray.length][];
+				for (int i = 0; i < entityArray.length; i++) {
+					ids[i] = String.valueOf(((Persistable) entityArray[i]).getId());
+					documents[i] = serialize((Persistable) entityArray[i]);
+				}
+				Map<String, String> digests = new HashMap<>();
+				Map<String, Long> versions = new HashMap<>();
+				SearchResponse response = client.prepareSearch(indexName).setTypes(type)
+						.setQuery(QueryBuilders.idsQuery(type).addIds(ids)).setFetchSource(false).setVersion(true)
+						.addDocValueField(DIGEST_FIELD).setSize(ids.length).get();
+				for (SearchHit sh : response.getHits().getHits()) {
+					SearchHitField field = sh.field(DIGEST_FIELD);
+					digests.put(sh.getId(), field != null ? String.valueOf(field.getValue()) : null);
+					versions.put(sh.getId(), sh.getVersion());
+				}
+				report.checked += entityArray.length;
+				for (int i = 0; i < entityArray.length; i++) {
+					if (documents[i] == null)
+						continue;
+					Persistable p = (Persistable) entityArray[i];
+					if (!digests.containsKey(ids[i])) {
+						report.missing++;
+						// a document indexed meanwhile is newer, creating fails with a conflict instead of overwriting it
+						if (bulkIndexer != null)
+							bulkIndexer.add(client.prepareIndex(writeIndexName(type, getPartition(p)), type, ids[i])
+									.setRouting(getRouting(p)).setSource(withDigest(documents[i]), XContentType.JSON)
+									.setCreate(true).request());
+						continue;
+					}
+					String digest = digests.get(ids[i]);
+					if (digest != null && DigestUtils.md5Hex(documents[i]).equals(digest))
+						continue;
+					if (bulkIndexer != null) {
+						// entity may be changed and indexed after it was loaded, recheck against its latest state
+						try {
+							session.refresh(p);
+						} catch (UnresolvableObjectException | EntityNotFoundException e) {
+							continue;
+						}
+						documents[i] = serialize(p);
+						if (documents[i] == null
+								|| digest != null && DigestUtils.md5Hex(documents[i]).equals(digest))
+							continue;
+					}
+					if (digest == null)
+						report.unverified++;
+					else
+						report.stale++;
+					// writes after the digest was read win, the repair fails with a conflict
+					if (bulkIndexer != null)
+						bulkIndexer.add(client.prepareIndex(writeIndexName(type, getPartition(p)), type, ids[i])
+								.setRouting(getRouting(p)).setSource(withDigest(documents[i]), XContentType.JSON)
+								.setVersion(versions.get(ids[i])).request());
+				}
+			}, DetachedCriteria.forClass(clazz).addOrder(Order.asc("id")));
+			findOrphans(clazz, type, indexName, report, bulkIndexer);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		} finally {
+			if (bulkIndexer != null) {
+				bulkIndexer.close();
+				report.failed = bulkIndexer.getFailed();
+				if (report.getDrifted() > 0)
+					searchResultCache.invalidate(type);
+			}
+		}
+		report.tookInMillis = System.currentTimeMillis() - time;
+		searchMetrics.recordConsistency(report);
+		if (report.getDrifted() > 0)
+			logger.warn("verified {}", report);
+		else
+			logger.info("verified {}", report);
+		return report;
+	}
+
+	private void findOrphans(Class clazz, String type, String indexName, ConsistencyReport report,
+			BulkIndexer bulkIndexer) {
+		Class idType = BeanUtils.getPropertyDescriptor(clazz, "id").getPropertyType();
+		SimpleTypeConverter converter = new SimpleTypeConverter();
+		TimeValue keepAlive = TimeValue.timeValueMinutes(1);
+		SearchResponse response = client.prepareSearch(indexName).setTypes(type)
+				.setQuery(QueryBuilders.matchAllQuery()).setFetchSource(false).setVersion(true)
+				.addSort("_doc", SortOrder.ASC)
+				.setSize(verifyChunkSize).setScroll(keepAlive).get();
+		try {
+			while (response.getHits().getHits().length > 0) {
+				SearchHit[] hits = response.getHits().getHits();
+				report.scanned += hits.length;
+				List<Object> ids = new ArrayList<>(hits.length);
+				for (SearchHit sh : hits)
+					ids.add(converter.convertIfNecessary(sh.getId(), idType));
+				Set<String> existing = new HashSet<>();
+				for (Object id : entityManager.findListByCriteria(DetachedCriteria.forClass(clazz)
+						.add(Restrictions.in("id", ids)).setProjection(Projections.id())))
+					existing.add(String.valueOf(id));
+				for (SearchHit sh : hits) {
+					if (existing.contains(sh.getId()))
+						continue;
+					report.orphaned++;
+					if (bulkIndexer != null) {
+						SearchHitField routing = sh.field("_routing");
+						bulkIndexer.add(new DeleteRequest(sh.getIndex(), type, sh.getId())
+								.routing(routing != null ? String.valueOf(routing.getValue()) : null)
+								.version(sh.getVersion()));
+					}
+				}
+				response = client.prepareSearchScroll(response.getScrollId()).setScroll(keepAlive).get();
+			}
+		} finally {
+			client.prepareClearScroll().addScrollId(response.getScrollId()).get();
+		}
+	}
+
+	private IndexingSummary indexAll(String type, String indexName, DetachedCriteria dc, RebuildTask task) {
+		Class clz = typeToClass(type);
+		entityManager.setEntityClass(clz);
+		long time = System.currentTimeMillis();
+		BulkIndexer bulkIndexer = createBulkIndexer();
+		try {
+			if (dc != null) {
+				entityManager.iterate(bulkActions, callback(type, indexName, bulkIndexer, null, null), dc);
+			} else {
+				List<Partition> partitions = task != null && task.partitions != null ? task.partitions
+						: partition(clz);
+				if (task != null)
+					task.partitions = partitions;
+				indexPartitions(clz, type, indexName, partitions, bulkIndexer, task);
+			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		} finally {
+			bulkIndexer.close();
+			searchResultCache.invalidate(type);
+		}
+		IndexingSummary summary = new IndexingSummary(type, bulkIndexer.getIndexed(), bulkIndexer.getFailed(),
+				System.currentTimeMillis() - time);
+		logger.info("indexed {}", summary);
+		return summary;
 	}
 
 }
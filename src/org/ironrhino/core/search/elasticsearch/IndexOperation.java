@@ -0,0 +1,143 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.Objects;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+public class IndexOperation implements Serializable {
+
+	private static final long serialVersionUID = 6915472330164869826L;
+
+	public enum Action {
+		INDEX, DELETE, UPDATE
+	}
+
+	private final Action action;
+
+	private final String type;
+
+	private final String id;
+
+	private final byte[] source;
+
+	private final String routing;
+
+	private final String partition;
+
+	private final boolean relocated;
+
+	private final String formerRouting;
+
+	private final String formerPartition;
+
+	public IndexOperation(Action action, String type, String id, byte[] source) {
+		this(action, type, id, source, null, null);
+	}
+
+	public IndexOperation(Action action, String type, String id, byte[] source, String routing, String partition) {
+		this(action, type, id, source, routing, partition, false, null, null);
+	}
+
+	private IndexOperation(Action action, String type, String id, byte[] source, String routing, String partition,
+			boolean relocated, String formerRouting, String formerPartition) {
+		this.action = action;
+		this.type = type;
+		this.id = id;
+		this.source = source;
+		this.routing = routing;
+		this.partition = partition;
+		this.relocated = relocated;
+		this.formerRouting = formerRouting;
+		this.formerPartition = formerPartition;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public byte[] getSource() {
+		return source;
+	}
+
+	public String getRouting() {
+		return routing;
+	}
+
+	public String getPartition() {
+		return partition;
+	}
+
+	// document is stored at former routing and partition, it should be removed from there
+	public boolean isRelocated() {
+		return relocated;
+	}
+
+	public String getFormerRouting() {
+		return formerRouting;
+	}
+
+	public String getFormerPartition() {
+		return formerPartition;
+	}
+
+	public String getKey() {
+		return type + '#' + id;
+	}
+
+	public IndexOperation relocateFrom(String formerRouting, String formerPartition) {
+		if (Objects.equals(formerRouting, routing) && Objects.equals(formerPartition, partition))
+			return new IndexOperation(action, type, id, source, routing, partition);
+		return new IndexOperation(action, type, id, source, routing, partition, true, formerRouting,
+				formerPartition);
+	}
+
+	public IndexOperation coalesce(IndexOperation previous) {
+		if (previous == null)
+			return this;
+		IndexOperation result = this;
+		if (action == Action.UPDATE && previous.action != Action.DELETE && previous.source != null) {
+			Map<String, Object> document = XContentHelper
+					.convertToMap(new BytesArray(previous.source), true, XContentType.JSON).v2();
+			document.putAll(XContentHelper.convertToMap(new BytesArray(source), true, XContentType.JSON).v2());
+			try {
+				result = new IndexOperation(previous.action, type, id,
+						BytesReference.toBytes(XContentFactory.jsonBuilder().map(document).bytes()), routing,
+						partition, relocated, formerRouting, formerPartition);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		// previous operation is never sent, document is still where it was before previous operation
+		if (previous.relocated)
+			return result.relocateFrom(previous.formerRouting, previous.formerPartition);
+		if (!result.relocated)
+			return result.relocateFrom(previous.routing, previous.partition);
+		return result;
+	}
+
+	public int estimatedSize() {
+		return 64 + (routing != null ? routing.length() : 0) + (source != null ? source.length : 0);
+	}
+
+	@Override
+	public String toString() {
+		return action + " " + getKey();
+	}
+
+}
@@ -0,0 +1,505 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.ironrhino.core.util.AppInfo;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Component
+public class IndexOutbox {
+
+	public static final long NONE = -1;
+
+	private static final String SEGMENT_PREFIX = "outbox-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static final int HEADER_SIZE = 4 + 1 + 8;
+
+	private static final byte STATUS_PENDING = 0;
+
+	private static final byte STATUS_ACKED = 1;
+
+	private static final byte FORMAT_VERSION = 1;
+
+	// MappedByteBuffer.force(int, int) is available since Java 13
+	private static final MethodHandle FORCE_RANGE;
+
+	static {
+		MethodHandle mh = null;
+		try {
+			mh = MethodHandles.publicLookup().findVirtual(MappedByteBuffer.class, "force",
+					MethodType.methodType(MappedByteBuffer.class, int.class, int.class));
+		} catch (ReflectiveOperationException e) {
+			// the whole segment is forced instead
+		}
+		FORCE_RANGE = mh;
+	}
+
+	@Autowired
+	private Logger logger;
+
+	@Autowired
+	private IndexManager indexManager;
+
+	@Autowired
+	private SearchMetrics searchMetrics;
+
+	@Value("${elasticsearch.outbox.enabled:false}")
+	private boolean enabled;
+
+	@Value("${elasticsearch.outbox.directory:}")
+	private String directory;
+
+	@Value("${elasticsearch.outbox.segmentSize:64mb}")
+	private String segmentSize;
+
+	@Value("${elasticsearch.outbox.sync:false}")
+	private boolean sync;
+
+	@Value("${elasticsearch.outbox.replayInterval:5000}")
+	private long replayInterval;
+
+	@Value("${elasticsearch.outbox.retryDelay:10000}")
+	private long retryDelay;
+
+	@Value("${elasticsearch.outbox.maxRetryDelay:600000}")
+	private long maxRetryDelay;
+
+	@Value("${elasticsearch.outbox.replayBatchSize:500}")
+	private int replayBatchSize;
+
+	private File dir;
+
+	private int segmentSizeInBytes;
+
+	private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+
+	private final ConcurrentSkipListMap<Long, PendingRecord> pendings = new ConcurrentSkipListMap<>();
+
+	// latest complete record of a key supersedes older ones until no record of the key is pending
+	private final Map<String, Long> latestHandles = new ConcurrentHashMap<>();
+
+	private final Map<String, Integer> pendingCounts = new ConcurrentHashMap<>();
+
+	private Segment current;
+
+	private ScheduledExecutorService scheduler;
+
+	@PostConstruct
+	public void init() throws IOException {
+		if (!enabled)
+			return;
+		segmentSizeInBytes = (int) Math.min(Integer.MAX_VALUE,
+				ByteSizeValue.parseBytesSizeValue(segmentSize, "elasticsearch.outbox.segmentSize").getBytes());
+		dir = new File(StringUtils.isNotBlank(directory) ? directory
+				: AppInfo.getAppHome().replace('\\', '/') + "/search/outbox");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create directory " + dir);
+		recover();
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "index-outbox-replayer");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::replay, replayInterval, replayInterval, TimeUnit.MILLISECONDS);
+		searchMetrics.gauge("outbox.backlog", this, IndexOutbox::getBacklog);
+		searchMetrics.gauge("outbox.backlogAge", this, IndexOutbox::getBacklogAge);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (scheduler != null)
+			scheduler.shutdownNow();
+		for (Segment segment : segments.values())
+			segment.close();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getBacklog() {
+		return pendings.size();
+	}
+
+	public long getBacklogAge() {
+		Map.Entry<Long, PendingRecord> oldest = pendings.firstEntry();
+		return oldest != null ? System.currentTimeMillis() - oldest.getValue().timestamp : 0;
+	}
+
+	public synchronized long append(IndexOperation operation) {
+		if (!enabled)
+			return NONE;
+		byte[] payload = encode(operation);
+		int length = HEADER_SIZE + payload.length;
+		if (length + 4 > segmentSizeInBytes) {
+			logger.warn("{} is too large for outbox", operation);
+			return NONE;
+		}
+		try {
+			if (current == null || current.position + length + 4 > segmentSizeInBytes)
+				current = openSegment(current == null ? 0 : current.seq + 1);
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+			return NONE;
+		}
+		long now = System.currentTimeMillis();
+		int offset = current.position;
+		MappedByteBuffer buffer = current.buffer;
+		buffer.put(offset + 4, STATUS_PENDING);
+		buffer.putLong(offset + 5, now);
+		ByteBuffer bb = buffer.duplicate();
+		bb.position(offset + HEADER_SIZE);
+		bb.put(payload);
+		buffer.putInt(offset, length);
+		if (sync)
+			force(buffer, offset, length);
+		current.position += length;
+		current.pending++;
+		long handle = ((long) current.seq << 32) | offset;
+		pendings.put(handle, new PendingRecord(operation.getKey(), now, now + retryDelay, operation.isRelocated()));
+		pendingCounts.merge(operation.getKey(), 1, Integer::sum);
+		if (operation.getAction() != IndexOperation.Action.UPDATE)
+			latestHandles.put(operation.getKey(), handle);
+		return handle;
+	}
+
+	public synchronized void ack(long handle) {
+		if (handle == NONE)
+			return;
+		PendingRecord record = pendings.remove(handle);
+		if (record == null)
+			return;
+		if (pendingCounts.computeIfPresent(record.key, (k, v) -> v > 1 ? v - 1 : null) == null)
+			latestHandles.remove(record.key);
+		Segment segment = segments.get((int) (handle >>> 32));
+		if (segment == null)
+			return;
+		segment.buffer.put((int) handle + 4, STATUS_ACKED);
+		if (--segment.pending == 0 && segment != current) {
+			segments.remove(segment.seq);
+			segment.close();
+			if (!segment.file.delete())
+				logger.warn("Unable to delete {}", segment.file);
+		}
+	}
+
+	public void execute(Collection<IndexOperation> operations) {
+		List<IndexOperation> list = new ArrayList<>(operations);
+		long[] handles = new long[list.size()];
+		for (int i = 0; i < handles.length; i++)
+			handles[i] = append(list.get(i));
+		execute(list, handles);
+	}
+
+	private void execute(List<IndexOperation> operations, long[] handles) {
+		indexManager.execute(operations).addListener(new ActionListener<BulkResponse>() {
+			@Override
+			public void onResponse(BulkResponse response) {
+				BulkItemResponse[] items = response.getItems();
+				for (int i = 0; i < handles.length; i++) {
+					if (!items[i].isFailed()) {
+						ack(handles[i]);
+					} else if (operations.get(i).getAction() == IndexOperation.Action.UPDATE
+							&& items[i].getFailure().getStatus() == RestStatus.NOT_FOUND) {
+						// retrying is pointless, document will be indexed again by consistency verification
+						logger.warn("Discarding {}: {}", operations.get(i), items[i].getFailureMessage());
+						ack(handles[i]);
+					} else {
+						logger.error("Failed to {}: {}", operations.get(i), items[i].getFailureMessage());
+					}
+				}
+			}
+
+			@Override
+			public void onFailure(Exception e) {
+				logger.error(e.getMessage(), e);
+			}
+		});
+	}
+
+	void replay() {
+		long now = System.currentTimeMillis();
+		List<IndexOperation> operations = new ArrayList<>();
+		List<Long> handles = new ArrayList<>();
+		for (Map.Entry<Long, PendingRecord> entry : pendings.entrySet()) {
+			long handle = entry.getKey();
+			PendingRecord record = entry.getValue();
+			// partial updates never supersede earlier records, only complete index or delete operations do
+			// removal from former location is not repeated by later records
+			Long latest = latestHandles.get(record.key);
+			if (latest != null && latest > handle && !record.relocated) {
+				ack(handle);
+				continue;
+			}
+			if (record.nextAttempt > now)
+				continue;
+			try {
+				operations.add(read(handle));
+				handles.add(handle);
+				record.attempts++;
+				record.nextAttempt = now + Math.min(maxRetryDelay, retryDelay << Math.min(record.attempts, 16));
+			} catch (RuntimeException e) {
+				logger.error("Discarding unreadable outbox record " + handle, e);
+				ack(handle);
+			}
+			if (operations.size() >= replayBatchSize)
+				break;
+		}
+		if (operations.isEmpty())
+			return;
+		logger.info("Replaying {} of {} pending index operations", operations.size(), pendings.size());
+		long[] array = new long[handles.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = handles.get(i);
+		try {
+			execute(operations, array);
+		} catch (RuntimeException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	IndexOperation read(long handle) {
+		Segment segment = segments.get((int) (handle >>> 32));
+		if (segment == null)
+			throw new IllegalStateException("Segment of " + handle + " is missing");
+		int offset = (int) handle;
+		return decode(readPayload(segment.buffer, offset, segment.buffer.getInt(offset)));
+	}
+
+	private void recover() throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (files == null)
+			return;
+		int[] seqs = new int[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			seqs[i] = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+		Arrays.sort(seqs);
+		for (int seq : seqs) {
+			Segment segment = openSegment(seq);
+			MappedByteBuffer buffer = segment.buffer;
+			int offset = 0;
+			while (offset + HEADER_SIZE <= buffer.capacity()) {
+				int length = buffer.getInt(offset);
+				if (length < HEADER_SIZE || offset + length > buffer.capacity())
+					break;
+				boolean pending = buffer.get(offset + 4) == STATUS_PENDING;
+				long handle = ((long) seq << 32) | offset;
+				try {
+					// acknowledged records are decoded too, they still supersede older pending records
+					IndexOperation operation = decode(readPayload(buffer, offset, length));
+					String key = operation.getKey();
+					if (pending) {
+						pendings.put(handle,
+								new PendingRecord(key, buffer.getLong(offset + 5), 0, operation.isRelocated()));
+						pendingCounts.merge(key, 1, Integer::sum);
+						segment.pending++;
+					}
+					if (operation.getAction() != IndexOperation.Action.UPDATE)
+						latestHandles.put(key, handle);
+				} catch (RuntimeException e) {
+					if (pending) {
+						logger.error("Discarding unreadable outbox record " + handle, e);
+						buffer.put(offset + 4, STATUS_ACKED);
+					}
+				}
+				offset += length;
+			}
+			segment.position = offset;
+			if (segment.pending == 0 && seq != seqs[seqs.length - 1]) {
+				segments.remove(seq);
+				segment.close();
+				segment.file.delete();
+			} else {
+				current = segment;
+			}
+		}
+		latestHandles.keySet().retainAll(pendingCounts.keySet());
+		if (!pendings.isEmpty())
+			logger.info("Recovered {} pending index operations from outbox", pendings.size());
+	}
+
+	private Segment openSegment(int seq) throws IOException {
+		File file = new File(dir, SEGMENT_PREFIX + String.format("%010d", seq) + SEGMENT_SUFFIX);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeInBytes);
+			Segment segment = new Segment(seq, file, buffer);
+			segments.put(seq, segment);
+			return segment;
+		}
+	}
+
+	private static void force(MappedByteBuffer buffer, int offset, int length) {
+		if (FORCE_RANGE == null) {
+			buffer.force();
+			return;
+		}
+		try {
+			FORCE_RANGE.invoke(buffer, offset, length);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] readPayload(MappedByteBuffer buffer, int offset, int length) {
+		byte[] payload = new byte[length - HEADER_SIZE];
+		ByteBuffer bb = buffer.duplicate();
+		bb.position(offset + HEADER_SIZE);
+		bb.get(payload);
+		return payload;
+	}
+
+	static byte[] encode(IndexOperation operation) {
+		byte[] type = operation.getType().getBytes(StandardCharsets.UTF_8);
+		byte[] id = operation.getId().getBytes(StandardCharsets.UTF_8);
+		byte[] source = operation.getSource();
+		byte[] routing = operation.getRouting() != null ? operation.getRouting().getBytes(StandardCharsets.UTF_8)
+				: null;
+		byte[] partition = operation.getPartition() != null
+				? operation.getPartition().getBytes(StandardCharsets.UTF_8)
+				: null;
+		byte[] formerRouting = operation.getFormerRouting() != null
+				? operation.getFormerRouting().getBytes(StandardCharsets.UTF_8)
+				: null;
+		byte[] formerPartition = operation.getFormerPartition() != null
+				? operation.getFormerPartition().getBytes(StandardCharsets.UTF_8)
+				: null;
+		ByteBuffer bb = ByteBuffer.allocate(1 + 1 + 4 + type.length + 4 + id.length + 4
+				+ (source != null ? source.length : 0) + 4 + (routing != null ? routing.length : 0) + 4
+				+ (partition != null ? partition.length : 0) + 1 + 4
+				+ (formerRouting != null ? formerRouting.length : 0) + 4
+				+ (formerPartition != null ? formerPartition.length : 0));
+		bb.put(FORMAT_VERSION);
+		bb.put((byte) operation.getAction().ordinal());
+		putBytes(bb, type);
+		putBytes(bb, id);
+		putBytes(bb, source);
+		putBytes(bb, routing);
+		putBytes(bb, partition);
+		bb.put((byte) (operation.isRelocated() ? 1 : 0));
+		putBytes(bb, formerRouting);
+		putBytes(bb, formerPartition);
+		return bb.array();
+	}
+
+	private static void putBytes(ByteBuffer bb, byte[] bytes) {
+		if (bytes != null)
+			bb.putInt(bytes.length).put(bytes);
+		else
+			bb.putInt(-1);
+	}
+
+	static IndexOperation decode(byte[] payload) {
+		ByteBuffer bb = ByteBuffer.wrap(payload);
+		byte version = bb.get();
+		if (version != FORMAT_VERSION)
+			throw new IllegalArgumentException("Unsupported outbox record version " + version);
+		IndexOperation.Action action = IndexOperation.Action.values()[bb.get()];
+		String type = readString(bb);
+		String id = readString(bb);
+		byte[] source = readBytes(bb);
+		String routing = readString(bb);
+		String partition = readString(bb);
+		boolean relocated = bb.get() != 0;
+		String formerRouting = readString(bb);
+		String formerPartition = readString(bb);
+		IndexOperation operation = new IndexOperation(action, type, id, source, routing, partition);
+		return relocated ? operation.relocateFrom(formerRouting, formerPartition) : operation;
+	}
+
+	private static String readString(ByteBuffer bb) {
+		byte[] bytes = readBytes(bb);
+		return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+	}
+
+	private static byte[] readBytes(ByteBuffer bb) {
+		int length = bb.getInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		bb.get(bytes);
+		return bytes;
+	}
+
+	private static class Segment {
+
+		final int seq;
+
+		final File file;
+
+		final MappedByteBuffer buffer;
+
+		int position;
+
+		int pending;
+
+		Segment(int seq, File file, MappedByteBuffer buffer) {
+			this.seq = seq;
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		void close() {
+			buffer.force();
+		}
+
+	}
+
+	private static class PendingRecord {
+
+		final String key;
+
+		final long timestamp;
+
+		final boolean relocated;
+
+		volatile int attempts;
+
+		volatile long nextAttempt;
+
+		PendingRecord(String key, long timestamp, long nextAttempt, boolean relocated) {
+			this.key = key;
+			this.timestamp = timestamp;
+			this.nextAttempt = nextAttempt;
+			this.relocated = relocated;
+		}
+
+	}
+
+}
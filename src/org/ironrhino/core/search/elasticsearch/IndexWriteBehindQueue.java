@@ -0,0 +1,242 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.ironrhino.core.model.Persistable;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@SuppressWarnings("rawtypes")
+@Component
+public class IndexWriteBehindQueue {
+
+	@Autowired
+	private Logger logger;
+
+	@Autowired
+	private IndexManager indexManager;
+
+	@Autowired
+	private IndexOutbox indexOutbox;
+
+	@Autowired
+	private SearchMetrics searchMetrics;
+
+	@Value("${elasticsearch.writeBehind.enabled:false}")
+	private boolean enabled;
+
+	@Value("${elasticsearch.writeBehind.flushActions:500}")
+	private int flushActions;
+
+	@Value("${elasticsearch.writeBehind.flushInterval:1000}")
+	private long flushInterval;
+
+	@Value("${elasticsearch.writeBehind.maxSize:32mb}")
+	private String maxSize;
+
+	@Value("${elasticsearch.writeBehind.shutdownTimeout:30000}")
+	private long shutdownTimeout;
+
+	private long maxSizeInBytes;
+
+	private final Map<String, Pending> pendings = new LinkedHashMap<>();
+
+	private long pendingBytes;
+
+	private long inflightBytes;
+
+	private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+	private ScheduledExecutorService scheduler;
+
+	private volatile boolean closed;
+
+	@PostConstruct
+	public void init() {
+		if (!enabled)
+			return;
+		maxSizeInBytes = ByteSizeValue.parseBytesSizeValue(maxSize, "elasticsearch.writeBehind.maxSize").getBytes();
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "index-write-behind");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		searchMetrics.gauge("writeBehind.pending", this, IndexWriteBehindQueue::getPendingCount);
+		searchMetrics.gauge("writeBehind.inflightBytes", this, IndexWriteBehindQueue::getInflightBytes);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (scheduler == null)
+			return;
+		closed = true;
+		scheduler.shutdown();
+		CompletableFuture<Void> future = flush();
+		try {
+			future.get(shutdownTimeout, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			logger.error("Failed to drain write-behind queue: " + e.getMessage(), e);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public CompletableFuture<Void> index(Persistable entity) {
+		return enqueue(indexManager.prepareIndex(entity));
+	}
+
+	public CompletableFuture<Void> delete(Persistable entity) {
+		return enqueue(indexManager.prepareDelete(entity));
+	}
+
+	public CompletableFuture<Void> enqueue(IndexOperation operation) {
+		if (!enabled || closed) {
+			Pending pending = new Pending(operation, indexOutbox.append(operation), new CompletableFuture<>());
+			List<Pending> list = new ArrayList<>(1);
+			list.add(pending);
+			execute(list);
+			return pending.future;
+		}
+		CompletableFuture<Void> future;
+		boolean full;
+		boolean overflow;
+		synchronized (this) {
+			Pending previous = pendings.remove(operation.getKey());
+			if (previous != null)
+				operation = operation.coalesce(previous.operation);
+			long handle = indexOutbox.append(operation);
+			if (previous != null) {
+				pendingBytes -= previous.operation.estimatedSize();
+				indexOutbox.ack(previous.handle);
+			}
+			future = previous != null ? previous.future : new CompletableFuture<>();
+			pendings.put(operation.getKey(), new Pending(operation, handle, future));
+			pendingBytes += operation.estimatedSize();
+			full = pendings.size() >= flushActions;
+			// batches not acknowledged yet count, otherwise they pile up behind a slow cluster
+			overflow = pendingBytes + inflightBytes >= maxSizeInBytes;
+		}
+		if (overflow) {
+			flush().join();
+		} else if (full) {
+			try {
+				scheduler.execute(this::flush);
+			} catch (RejectedExecutionException e) {
+				// shutting down, destroy() drains what is left
+				flush();
+			}
+		}
+		return future;
+	}
+
+	public int getPendingCount() {
+		synchronized (this) {
+			return pendings.size();
+		}
+	}
+
+	public long getPendingBytes() {
+		synchronized (this) {
+			return pendingBytes;
+		}
+	}
+
+	public long getInflightBytes() {
+		synchronized (this) {
+			return inflightBytes;
+		}
+	}
+
+	public synchronized CompletableFuture<Void> flush() {
+		if (!pendings.isEmpty()) {
+			List<Pending> list = new ArrayList<>(pendings.values());
+			long bytes = pendingBytes;
+			pendings.clear();
+			pendingBytes = 0;
+			inflightBytes += bytes;
+			tail = tail.thenCompose(v -> execute(list)).whenComplete((v, e) -> release(bytes));
+		}
+		return tail;
+	}
+
+	private synchronized void release(long bytes) {
+		inflightBytes -= bytes;
+	}
+
+	private CompletableFuture<Void> execute(List<Pending> list) {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		List<IndexOperation> operations = new ArrayList<>(list.size());
+		for (Pending p : list)
+			operations.add(p.operation);
+		try {
+			indexManager.execute(operations).addListener(new ActionListener<BulkResponse>() {
+				@Override
+				public void onResponse(BulkResponse response) {
+					BulkItemResponse[] items = response.getItems();
+					for (int i = 0; i < list.size(); i++) {
+						Pending p = list.get(i);
+						if (items[i].isFailed()) {
+							logger.error("Failed to {}: {}", p.operation, items[i].getFailureMessage());
+							p.future.completeExceptionally(items[i].getFailure().getCause());
+						} else {
+							indexOutbox.ack(p.handle);
+							p.future.complete(null);
+						}
+					}
+					done.complete(null);
+				}
+
+				@Override
+				public void onFailure(Exception e) {
+					logger.error(e.getMessage(), e);
+					for (Pending p : list)
+						p.future.completeExceptionally(e);
+					done.complete(null);
+				}
+			});
+		} catch (RuntimeException e) {
+			logger.error(e.getMessage(), e);
+			for (Pending p : list)
+				p.future.completeExceptionally(e);
+			done.complete(null);
+		}
+		return done;
+	}
+
+	private static class Pending {
+
+		final IndexOperation operation;
+
+		final long handle;
+
+		final CompletableFuture<Void> future;
+
+		Pending(IndexOperation operation, long handle, CompletableFuture<Void> future) {
+			this.operation = operation;
+			this.handle = handle;
+			this.future = future;
+		}
+
+	}
+
+}
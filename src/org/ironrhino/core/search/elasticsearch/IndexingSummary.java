@@ -0,0 +1,50 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.io.Serializable;
+
+public class IndexingSummary implements Serializable {
+
+	private static final long serialVersionUID = -3164286502297718434L;
+
+	private final String type;
+
+	private final long indexed;
+
+	private final long failed;
+
+	private final long tookInMillis;
+
+	public IndexingSummary(String type, long indexed, long failed, long tookInMillis) {
+		this.type = type;
+		this.indexed = indexed;
+		this.failed = failed;
+		this.tookInMillis = tookInMillis;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public long getIndexed() {
+		return indexed;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public long getTookInMillis() {
+		return tookInMillis;
+	}
+
+	public double getThroughput() {
+		return tookInMillis > 0 ? indexed * 1000.0 / tookInMillis : indexed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: indexed %d, failed %d in %d ms (%.1f docs/s)", type, indexed, failed, tookInMillis,
+				getThroughput());
+	}
+
+}
@@ -0,0 +1,118 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ironrhino.core.model.ResultPage;
+import org.ironrhino.core.search.SearchCriteria;
+import org.ironrhino.core.search.SearchService.Mapper;
+
+public class MultiSearch<T> {
+
+	enum Kind {
+		PAGE, LIST, TERMS, FACETS
+	}
+
+	private final List<Item<T>> items = new ArrayList<>();
+
+	public MultiSearch<T> add(ResultPage<T> resultPage) {
+		return add(resultPage, null);
+	}
+
+	public MultiSearch<T> add(ResultPage<T> resultPage, Mapper<T> mapper) {
+		Item<T> item = new Item<>(Kind.PAGE, resultPage.getCriteria());
+		item.resultPage = resultPage;
+		item.mapper = mapper;
+		item.from = resultPage.isPaged() ? resultPage.getStart() : 0;
+		item.size = resultPage.isPaged() ? resultPage.getPageSize() : ResultPage.DEFAULT_MAX_PAGESIZE;
+		items.add(item);
+		return this;
+	}
+
+	public MultiSearch<T> add(SearchCriteria searchCriteria) {
+		return add(searchCriteria, null, -1);
+	}
+
+	public MultiSearch<T> add(SearchCriteria searchCriteria, Mapper<T> mapper, int limit) {
+		Item<T> item = new Item<>(Kind.LIST, searchCriteria);
+		item.mapper = mapper;
+		item.size = limit > 0 && limit < ResultPage.DEFAULT_MAX_PAGESIZE ? limit : ResultPage.DEFAULT_MAX_PAGESIZE;
+		items.add(item);
+		return this;
+	}
+
+	public MultiSearch<T> addTermsCount(SearchCriteria searchCriteria, String field) {
+		Item<T> item = new Item<>(Kind.TERMS, searchCriteria);
+		item.field = field;
+		items.add(item);
+		return this;
+	}
+
+	public MultiSearch<T> addFacets(SearchCriteria searchCriteria, Facet... facets) {
+		Item<T> item = new Item<>(Kind.FACETS, searchCriteria);
+		item.facets = facets;
+		items.add(item);
+		return this;
+	}
+
+	public int size() {
+		return items.size();
+	}
+
+	List<Item<T>> getItems() {
+		return Collections.unmodifiableList(items);
+	}
+
+	static class Item<T> {
+
+		final Kind kind;
+
+		final SearchCriteria criteria;
+
+		ResultPage<T> resultPage;
+
+		Mapper<T> mapper;
+
+		int from;
+
+		int size;
+
+		String field;
+
+		Facet[] facets;
+
+		Item(Kind kind, SearchCriteria criteria) {
+			this.kind = kind;
+			this.criteria = criteria;
+		}
+
+	}
+
+	public static class Response {
+
+		private final Object result;
+
+		private final Exception failure;
+
+		Response(Object result, Exception failure) {
+			this.result = result;
+			this.failure = failure;
+		}
+
+		@SuppressWarnings("unchecked")
+		public <R> R getResult() {
+			return (R) result;
+		}
+
+		public Exception getFailure() {
+			return failure;
+		}
+
+		public boolean isFailed() {
+			return failure != null;
+		}
+
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.util.regex.Pattern;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ExistsQueryBuilder;
+import org.elasticsearch.index.query.IdsQueryBuilder;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.QueryStringQueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.query.TypeQueryBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Component
+public class QueryCompiler {
+
+	private static Pattern wildcardQueryPattern = Pattern.compile("\\w+:.*[\\?\\*].*");
+
+	@Value("${elasticsearch.search.filterRewrite:false}")
+	private boolean filterRewrite;
+
+	public QueryBuilder compile(String query) {
+		QueryBuilder qb;
+		if (wildcardQueryPattern.matcher(query).matches()) {
+			String[] arr = query.split(":", 2);
+			qb = QueryBuilders.wildcardQuery(arr[0], arr[1]);
+		} else {
+			QueryStringQueryBuilder qsqb = new QueryStringQueryBuilder(query);
+			qsqb.defaultOperator(Operator.AND);
+			qb = qsqb;
+		}
+		return qb;
+	}
+
+	public QueryBuilder rewrite(QueryBuilder qb) {
+		if (!filterRewrite || qb == null)
+			return qb;
+		if (isFilter(qb))
+			return QueryBuilders.boolQuery().filter(qb);
+		if (qb instanceof BoolQueryBuilder)
+			return rewrite((BoolQueryBuilder) qb);
+		return qb;
+	}
+
+	private static BoolQueryBuilder rewrite(BoolQueryBuilder bqb) {
+		BoolQueryBuilder rewritten = QueryBuilders.boolQuery();
+		for (QueryBuilder clause : bqb.must()) {
+			if (isFilter(clause))
+				rewritten.filter(clause);
+			else
+				rewritten.must(clause instanceof BoolQueryBuilder ? rewrite((BoolQueryBuilder) clause) : clause);
+		}
+		for (QueryBuilder clause : bqb.filter())
+			rewritten.filter(clause);
+		for (QueryBuilder clause : bqb.should())
+			rewritten.should(clause);
+		for (QueryBuilder clause : bqb.mustNot())
+			rewritten.mustNot(clause);
+		rewritten.minimumShouldMatch(bqb.minimumShouldMatch());
+		rewritten.adjustPureNegative(bqb.adjustPureNegative());
+		rewritten.boost(bqb.boost());
+		rewritten.queryName(bqb.queryName());
+		return rewritten;
+	}
+
+	private static boolean isFilter(QueryBuilder qb) {
+		return qb instanceof TermQueryBuilder || qb instanceof TermsQueryBuilder || qb instanceof RangeQueryBuilder
+				|| qb instanceof ExistsQueryBuilder || qb instanceof TypeQueryBuilder || qb instanceof IdsQueryBuilder;
+	}
+
+}
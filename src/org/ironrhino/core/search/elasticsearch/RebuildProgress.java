@@ -0,0 +1,123 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.io.Serializable;
+
+public class RebuildProgress implements Serializable {
+
+	private static final long serialVersionUID = 4710283547715024653L;
+
+	public enum Status {
+		PENDING, RUNNING, PAUSED, CANCELLED, COMPLETED, FAILED
+	}
+
+	private final String type;
+
+	private volatile Status status = Status.PENDING;
+
+	private volatile String generation;
+
+	private volatile long total;
+
+	private volatile long indexed;
+
+	private volatile long failed;
+
+	private volatile long resumedFrom;
+
+	private volatile long startTime;
+
+	private volatile long endTime;
+
+	public RebuildProgress(String type) {
+		this.type = type;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	void setStatus(Status status) {
+		this.status = status;
+		if (status == Status.RUNNING)
+			startTime = System.currentTimeMillis();
+		else if (status != Status.PENDING)
+			endTime = System.currentTimeMillis();
+	}
+
+	public String getGeneration() {
+		return generation;
+	}
+
+	void setGeneration(String generation) {
+		this.generation = generation;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	void setTotal(long total) {
+		this.total = total;
+	}
+
+	public long getIndexed() {
+		return indexed;
+	}
+
+	void setIndexed(long indexed) {
+		this.indexed = indexed;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	void setFailed(long failed) {
+		this.failed = failed;
+	}
+
+	public long getResumedFrom() {
+		return resumedFrom;
+	}
+
+	void setResumedFrom(long resumedFrom) {
+		this.resumedFrom = resumedFrom;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getEndTime() {
+		return endTime;
+	}
+
+	public double getRate() {
+		if (startTime == 0)
+			return 0;
+		long elapsed = (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+		return elapsed > 0 ? (indexed - resumedFrom) * 1000.0 / elapsed : 0;
+	}
+
+	public long getEta() {
+		if (status != Status.RUNNING)
+			return -1;
+		double rate = getRate();
+		return rate > 0 ? (long) (Math.max(0, total - indexed) * 1000 / rate) : -1;
+	}
+
+	public double getPercentage() {
+		return total > 0 ? Math.min(100, indexed * 100.0 / total) : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %s %d/%d (%.1f%%), failed %d, %.1f docs/s, eta %d ms", type, status, indexed, total,
+				getPercentage(), failed, getRate(), getEta());
+	}
+
+}
@@ -0,0 +1,54 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class SearchAfterPage<T> implements Serializable {
+
+	private static final long serialVersionUID = -1480632757104985402L;
+
+	private List<T> result;
+
+	private long totalResults;
+
+	private long tookInMillis;
+
+	private Object[] searchAfter;
+
+	public List<T> getResult() {
+		return result;
+	}
+
+	public void setResult(List<T> result) {
+		this.result = result;
+	}
+
+	public long getTotalResults() {
+		return totalResults;
+	}
+
+	public void setTotalResults(long totalResults) {
+		this.totalResults = totalResults;
+	}
+
+	public long getTookInMillis() {
+		return tookInMillis;
+	}
+
+	public void setTookInMillis(long tookInMillis) {
+		this.tookInMillis = tookInMillis;
+	}
+
+	public Object[] getSearchAfter() {
+		return searchAfter;
+	}
+
+	public void setSearchAfter(Object[] searchAfter) {
+		this.searchAfter = searchAfter;
+	}
+
+	public boolean hasNext() {
+		return searchAfter != null;
+	}
+
+}
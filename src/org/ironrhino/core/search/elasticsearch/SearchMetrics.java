@@ -0,0 +1,166 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.search.SearchResponse;
+import org.ironrhino.core.search.SearchCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+@Component
+public class SearchMetrics {
+
+	private static final String PREFIX = "elasticsearch.";
+
+	private static final boolean micrometerPresent = ClassUtils.isPresent("io.micrometer.core.instrument.MeterRegistry",
+			SearchMetrics.class.getClassLoader());
+
+	private final Logger slowQueryLogger = LoggerFactory.getLogger(getClass().getName() + ".slowQuery");
+
+	@Autowired
+	private ApplicationContext ctx;
+
+	@Value("${elasticsearch.metrics.enabled:true}")
+	private boolean enabled;
+
+	@Value("${elasticsearch.search.slowThreshold:1000}")
+	private long slowThreshold;
+
+	private Recorder recorder;
+
+	@PostConstruct
+	public void init() {
+		if (enabled && micrometerPresent)
+			recorder = new Recorder(ctx);
+	}
+
+	public boolean isEnabled() {
+		return recorder != null;
+	}
+
+	public void recordSearch(SearchCriteria criteria, SearchResponse response, long nanos) {
+		String type = tag(criteria);
+		long took = response.getTookInMillis();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(nanos);
+		if (slowThreshold > 0 && elapsed >= slowThreshold)
+			slowQueryLogger.warn("{} ms (took {} ms, {} hits) on [{}]: {}", elapsed, took,
+					response.getHits().getTotalHits(), type, describe(criteria));
+		if (recorder == null)
+			return;
+		recorder.timer("search", type).record(nanos, TimeUnit.NANOSECONDS);
+		recorder.timer("search.took", type).record(took, TimeUnit.MILLISECONDS);
+		recorder.timer("search.overhead", type).record(Math.max(0, nanos - TimeUnit.MILLISECONDS.toNanos(took)),
+				TimeUnit.NANOSECONDS);
+		recorder.summary("search.hits", type).record(response.getHits().getHits().length);
+		recorder.summary("search.totalHits", type).record(response.getHits().getTotalHits());
+	}
+
+	public void recordSearchFailure(SearchCriteria criteria) {
+		if (recorder != null)
+			recorder.counter("search.failures", "type", tag(criteria)).increment();
+	}
+
+	public void recordDeserialization(SearchCriteria criteria, int hits, long nanos) {
+		if (recorder != null && hits > 0)
+			recorder.timer("search.deserialization", tag(criteria)).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordOperation(IndexOperation.Action action, String type) {
+		if (recorder != null)
+			recorder.counter("index.operations", "type", type, "action", action.name().toLowerCase()).increment();
+	}
+
+	public void recordBulk(int actions, long bytes, int failures, long nanos) {
+		if (recorder == null)
+			return;
+		recorder.timer("bulk", null).record(nanos, TimeUnit.NANOSECONDS);
+		recorder.summary("bulk.actions", null).record(actions);
+		recorder.summary("bulk.bytes", null).record(bytes);
+		if (failures > 0)
+			recorder.counter("bulk.failures").increment(failures);
+	}
+
+	public void recordConsistency(ConsistencyReport report) {
+		if (recorder == null)
+			return;
+		String type = report.getType();
+		recorder.counter("consistency.missing", "type", type).increment(report.getMissing());
+		recorder.counter("consistency.stale", "type", type).increment(report.getStale());
+		recorder.counter("consistency.orphaned", "type", type).increment(report.getOrphaned());
+	}
+
+	public <T> void gauge(String name, T obj, ToDoubleFunction<T> f) {
+		if (recorder != null)
+			recorder.gauge(name, obj, f);
+	}
+
+	public <T> void counter(String name, T obj, ToDoubleFunction<T> f) {
+		if (recorder != null)
+			recorder.counter(name, obj, f);
+	}
+
+	private static String tag(SearchCriteria criteria) {
+		String[] types = criteria.getTypes();
+		return types == null || types.length == 0 ? "_all" : StringUtils.join(types, ',');
+	}
+
+	private static String describe(SearchCriteria criteria) {
+		if (criteria instanceof ElasticSearchCriteria && ((ElasticSearchCriteria) criteria).getQueryBuilder() != null)
+			return StringUtils.normalizeSpace(((ElasticSearchCriteria) criteria).getQueryBuilder().toString());
+		return criteria.getQuery();
+	}
+
+	private static class Recorder {
+
+		private final MeterRegistry registry;
+
+		Recorder(ApplicationContext ctx) {
+			this.registry = ctx.getBeanProvider(MeterRegistry.class).getIfAvailable(() -> Metrics.globalRegistry);
+		}
+
+		Timer timer(String name, String type) {
+			Timer.Builder builder = Timer.builder(PREFIX + name).publishPercentileHistogram();
+			if (type != null)
+				builder.tag("type", type);
+			return builder.register(registry);
+		}
+
+		DistributionSummary summary(String name, String type) {
+			DistributionSummary.Builder builder = DistributionSummary.builder(PREFIX + name);
+			if (type != null)
+				builder.tag("type", type);
+			return builder.register(registry);
+		}
+
+		Counter counter(String name, String... tags) {
+			return registry.counter(PREFIX + name, tags);
+		}
+
+		<T> void gauge(String name, T obj, ToDoubleFunction<T> f) {
+			Gauge.builder(PREFIX + name, obj, f).register(registry);
+		}
+
+		<T> void counter(String name, T obj, ToDoubleFunction<T> f) {
+			FunctionCounter.builder(PREFIX + name, obj, f).register(registry);
+		}
+
+	}
+
+}
@@ -0,0 +1,330 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.ironrhino.core.search.SearchCriteria;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Component
+public class SearchResultCache {
+
+	private static final int ENTRY_OVERHEAD = 256;
+
+	private static final int HIT_OVERHEAD = 64;
+
+	@Autowired
+	private SearchMetrics searchMetrics;
+
+	@Value("${elasticsearch.cache.enabled:false}")
+	private boolean enabled;
+
+	@Value("${elasticsearch.cache.maxSize:64mb}")
+	private String maxSize;
+
+	@Value("${elasticsearch.cache.ttl:0}")
+	private long ttl;
+
+	@Value("${elasticsearch.cache.eviction:lru}")
+	private String eviction;
+
+	// should be no less than index.refresh_interval
+	@Value("${elasticsearch.cache.refreshInterval:1000}")
+	private long refreshInterval;
+
+	private long maxSizeInBytes;
+
+	private FrequencySketch sketch;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+	private long size;
+
+	private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+	private final AtomicLong globalGeneration = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final Map<String, Long> pendingInvalidations = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService scheduler;
+
+	@PostConstruct
+	public void init() {
+		maxSizeInBytes = ByteSizeValue.parseBytesSizeValue(maxSize, "elasticsearch.cache.maxSize").getBytes();
+		if ("tinylfu".equalsIgnoreCase(eviction))
+			sketch = new FrequencySketch(4096);
+		if (enabled) {
+			searchMetrics.counter("cache.hits", hits, AtomicLong::get);
+			searchMetrics.counter("cache.misses", misses, AtomicLong::get);
+			searchMetrics.counter("cache.evictions", evictions, AtomicLong::get);
+			searchMetrics.gauge("cache.size", this, SearchResultCache::getSize);
+		}
+	}
+
+	@PreDestroy
+	public synchronized void destroy() {
+		if (scheduler != null)
+			scheduler.shutdownNow();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public String key(SearchCriteria criteria, int from, int size) {
+		StringBuilder sb = new StringBuilder(128);
+		String[] types = criteria.getTypes();
+		if (types != null && types.length > 0) {
+			types = types.clone();
+			Arrays.sort(types);
+			for (String type : types)
+				sb.append(type).append('@').append(generation(type)).append(',');
+		} else {
+			sb.append("*@").append(globalGeneration.get()).append(',');
+		}
+		sb.append('|');
+		if (criteria instanceof ElasticSearchCriteria) {
+			ElasticSearchCriteria esc = (ElasticSearchCriteria) criteria;
+			if (esc.getQueryBuilder() != null)
+				sb.append(esc.getQueryBuilder().toString());
+			sb.append('|').append(Arrays.toString(esc.getIncludes())).append(Arrays.toString(esc.getExcludes()));
+			String[] routing = esc.getRouting();
+			if (routing != null && routing.length > 0) {
+				routing = routing.clone();
+				Arrays.sort(routing);
+				sb.append('|').append(Arrays.toString(routing));
+			}
+		}
+		sb.append('|');
+		if (criteria.getQuery() != null)
+			sb.append(criteria.getQuery());
+		sb.append('|').append(criteria.getSorts());
+		sb.append('|').append(from).append(',').append(size);
+		return sb.toString();
+	}
+
+	public SearchResponse get(String key) {
+		if (!enabled)
+			return null;
+		if (sketch != null)
+			sketch.increment(shape(key));
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expiresAt > 0 && entry.expiresAt < System.currentTimeMillis()) {
+				remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return entry.response;
+		}
+	}
+
+	public void put(String key, SearchResponse response) {
+		if (!enabled)
+			return;
+		long weight = weigh(response);
+		if (weight > maxSizeInBytes)
+			return;
+		synchronized (this) {
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (size + weight > maxSizeInBytes && it.hasNext()) {
+				Map.Entry<String, Entry> eldest = it.next();
+				if (sketch != null && sketch.frequency(shape(key)) < sketch.frequency(shape(eldest.getKey())))
+					return;
+				it.remove();
+				size -= eldest.getValue().weight;
+				evictions.incrementAndGet();
+			}
+			Entry previous = entries.put(key,
+					new Entry(response, weight, ttl > 0 ? System.currentTimeMillis() + ttl : 0));
+			if (previous != null)
+				size -= previous.weight;
+			size += weight;
+		}
+	}
+
+	public void invalidate(String type) {
+		if (!enabled)
+			return;
+		generation(type).incrementAndGet();
+		globalGeneration.incrementAndGet();
+		// searches between acknowledgement and refresh may still cache results without the write
+		if (refreshInterval > 0
+				&& pendingInvalidations.put(type, System.currentTimeMillis() + refreshInterval) == null)
+			schedule(type, refreshInterval);
+	}
+
+	private void invalidateIfDue(String type) {
+		Long deadline = pendingInvalidations.get(type);
+		if (deadline == null)
+			return;
+		long delay = deadline - System.currentTimeMillis();
+		if (delay > 0) {
+			schedule(type, delay);
+		} else if (pendingInvalidations.remove(type, deadline)) {
+			generation(type).incrementAndGet();
+			globalGeneration.incrementAndGet();
+		} else {
+			invalidateIfDue(type);
+		}
+	}
+
+	private synchronized void schedule(String type, long delay) {
+		if (scheduler == null)
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "search-cache-invalidator");
+				t.setDaemon(true);
+				return t;
+			});
+		try {
+			scheduler.schedule(() -> invalidateIfDue(type), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			pendingInvalidations.remove(type);
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private AtomicLong generation(String type) {
+		AtomicLong generation = generations.get(type);
+		if (generation == null)
+			generation = generations.computeIfAbsent(type, t -> new AtomicLong());
+		return generation;
+	}
+
+	private static String shape(String key) {
+		return key.substring(key.indexOf('|'));
+	}
+
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			size -= entry.weight;
+	}
+
+	private static long weigh(SearchResponse response) {
+		long weight = ENTRY_OVERHEAD;
+		SearchHits shs = response.getHits();
+		if (shs != null)
+			for (SearchHit sh : shs.getHits()) {
+				BytesReference source = sh.getSourceRef();
+				weight += HIT_OVERHEAD + (source != null ? source.length() : 0);
+			}
+		return weight;
+	}
+
+	private static class Entry {
+
+		final SearchResponse response;
+
+		final long weight;
+
+		final long expiresAt;
+
+		Entry(SearchResponse response, long weight, long expiresAt) {
+			this.response = response;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+	private static class FrequencySketch {
+
+		private final int[][] table;
+
+		private final int mask;
+
+		private final int sampleSize;
+
+		private int additions;
+
+		FrequencySketch(int width) {
+			table = new int[4][width];
+			mask = width - 1;
+			sampleSize = width * 10;
+		}
+
+		synchronized void increment(String key) {
+			int hash = key.hashCode();
+			for (int i = 0; i < table.length; i++) {
+				int index = index(hash, i);
+				if (table[i][index] < 15)
+					table[i][index]++;
+			}
+			if (++additions >= sampleSize) {
+				for (int[] row : table)
+					for (int j = 0; j < row.length; j++)
+						row[j] >>>= 1;
+				additions /= 2;
+			}
+		}
+
+		synchronized int frequency(String key) {
+			int hash = key.hashCode();
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < table.length; i++)
+				frequency = Math.min(frequency, table[i][index(hash, i)]);
+			return frequency;
+		}
+
+		private int index(int hash, int i) {
+			int h = hash * (0x9E3779B9 + (i << 1)) + i;
+			h ^= h >>> 16;
+			return h & mask;
+		}
+
+	}
+
+}
@@ -0,0 +1,32 @@
+package org.ironrhino.core.search.elasticsearch.annotations;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+@Target(TYPE)
+@Retention(RUNTIME)
+public @interface SearchablePartition {
+
+	// date property which determines the partition of a document
+	String value() default "createDate";
+
+	Interval interval() default Interval.MONTH;
+
+	enum Interval {
+		DAY("yyyy.MM.dd"), MONTH("yyyy.MM"), YEAR("yyyy");
+
+		private final String pattern;
+
+		private Interval(String pattern) {
+			this.pattern = pattern;
+		}
+
+		public String getPattern() {
+			return pattern;
+		}
+	}
+
+}
@@ -0,0 +1,17 @@
+package org.ironrhino.core.search.elasticsearch.annotations;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+@Target({ METHOD, FIELD })
+@Retention(RUNTIME)
+public @interface SearchableRouting {
+
+	// nested property path of the annotated property, e.g. "id" for an owner entity
+	String value() default "";
+
+}
@@ -0,0 +1,293 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Test;
+
+public class BulkIndexerTest {
+
+	private static final int BULK_SIZE = 1024 * 1024;
+
+	private final ThreadPool threadPool = new ThreadPool(Settings.builder().put("node.name", "test").build());
+
+	@After
+	public void destroy() {
+		ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testRetryRejectedItems() {
+		FakeClient client = new FakeClient(
+				(request, call) -> call == 0 ? respond(request, i -> rejected()) : respond(request, i -> null));
+		BulkIndexer bulkIndexer = create(client, 500, false);
+		add(bulkIndexer, 5);
+		bulkIndexer.close();
+		assertEquals(2, client.requests.size());
+		assertEquals(5, client.requests.get(1).numberOfActions());
+		assertEquals(5, bulkIndexer.getIndexed());
+		assertEquals(5, bulkIndexer.getRetried());
+		assertEquals(5, bulkIndexer.getRejected());
+		assertEquals(0, bulkIndexer.getFailed());
+	}
+
+	@Test
+	public void testRetryOnlyRejectedItems() {
+		FakeClient client = new FakeClient((request, call) -> call == 0
+				? respond(request, i -> i % 2 == 1 ? rejected() : null)
+				: respond(request, i -> null));
+		BulkIndexer bulkIndexer = create(client, 500, false);
+		add(bulkIndexer, 5);
+		bulkIndexer.close();
+		assertEquals(2, client.requests.size());
+		List<DocWriteRequest> retried = client.requests.get(1).requests();
+		assertEquals(2, retried.size());
+		assertEquals("1", retried.get(0).id());
+		assertEquals("3", retried.get(1).id());
+		assertEquals(5, bulkIndexer.getIndexed());
+		assertEquals(2, bulkIndexer.getRetried());
+		assertEquals(0, bulkIndexer.getFailed());
+	}
+
+	@Test
+	public void testRetryRejectedRequest() {
+		FakeClient client = new FakeClient((request, call) -> {
+			if (call == 0)
+				throw new EsRejectedExecutionException("rejected");
+			return respond(request, i -> null);
+		});
+		BulkIndexer bulkIndexer = create(client, 500, false);
+		add(bulkIndexer, 5);
+		bulkIndexer.close();
+		assertEquals(2, client.requests.size());
+		assertEquals(5, bulkIndexer.getIndexed());
+		assertEquals(5, bulkIndexer.getRetried());
+		assertEquals(5, bulkIndexer.getRejected());
+		assertEquals(0, bulkIndexer.getFailed());
+	}
+
+	@Test
+	public void testGiveUpAfterMaxRetries() {
+		FakeClient client = new FakeClient((request, call) -> respond(request, i -> rejected()));
+		BulkIndexer bulkIndexer = create(client, 500, false);
+		List<DocWriteRequest> failedRequests = new CopyOnWriteArrayList<>();
+		bulkIndexer.setFailedRequestHandler(failedRequests::add);
+		add(bulkIndexer, 5);
+		bulkIndexer.close();
+		assertEquals(4, client.requests.size());
+		assertEquals(0, bulkIndexer.getIndexed());
+		assertEquals(5, bulkIndexer.getFailed());
+		assertEquals(15, bulkIndexer.getRetried());
+		assertEquals(5, failedRequests.size());
+	}
+
+	@Test
+	public void testNotRetryInvalidItems() {
+		FakeClient client = new FakeClient(
+				(request, call) -> respond(request, i -> i == 0 ? new MapperParsingException("invalid") : null));
+		BulkIndexer bulkIndexer = create(client, 500, false);
+		List<DocWriteRequest> failedRequests = new CopyOnWriteArrayList<>();
+		bulkIndexer.setFailedRequestHandler(failedRequests::add);
+		add(bulkIndexer, 5);
+		bulkIndexer.close();
+		assertEquals(1, client.requests.size());
+		assertEquals(4, bulkIndexer.getIndexed());
+		assertEquals(1, bulkIndexer.getFailed());
+		assertEquals(0, bulkIndexer.getRetried());
+		assertEquals(1, failedRequests.size());
+		assertEquals("0", failedRequests.get(0).id());
+	}
+
+	@Test
+	public void testNotFailConflictedItems() {
+		FakeClient client = new FakeClient((request, call) -> respond(request,
+				i -> i == 0 ? new VersionConflictEngineException(new ShardId("test", "_na_", 0), "article", "0",
+						"conflict") : null));
+		BulkIndexer bulkIndexer = create(client, 500, false);
+		List<DocWriteRequest> failedRequests = new CopyOnWriteArrayList<>();
+		bulkIndexer.setFailedRequestHandler(failedRequests::add);
+		add(bulkIndexer, 5);
+		bulkIndexer.close();
+		assertEquals(1, client.requests.size());
+		assertEquals(4, bulkIndexer.getIndexed());
+		assertEquals(1, bulkIndexer.getConflicted());
+		assertEquals(0, bulkIndexer.getFailed());
+		assertEquals(0, bulkIndexer.getRetried());
+		assertEquals(0, failedRequests.size());
+	}
+
+	@Test
+	public void testBulkActionsIsUpperBound() {
+		FakeClient client = new FakeClient((request, call) -> respond(request, i -> null));
+		BulkIndexer bulkIndexer = create(client, 10, true);
+		add(bulkIndexer, 25);
+		bulkIndexer.close();
+		assertEquals(3, client.requests.size());
+		assertEquals(10, client.requests.get(0).numberOfActions());
+		assertEquals(10, client.requests.get(1).numberOfActions());
+		assertEquals(5, client.requests.get(2).numberOfActions());
+		assertEquals(25, bulkIndexer.getIndexed());
+	}
+
+	@Test
+	public void testAdjust() {
+		FakeClient client = new FakeClient((request, call) -> respond(request, i -> null));
+		client.rejecting = true;
+		BulkIndexer bulkIndexer = create(client, 500, true);
+		bulkIndexer.setMaxRetries(0);
+		bulkIndexer.setTargetLatency(TimeUnit.HOURS.toMillis(1));
+		add(bulkIndexer, 1);
+		bulkIndexer.flush();
+		assertEquals(BULK_SIZE / 2, bulkIndexer.getBulkSize());
+		assertEquals(3, bulkIndexer.getConcurrency());
+		client.rejecting = false;
+		for (int i = 0; i < 7; i++) {
+			add(bulkIndexer, 1);
+			bulkIndexer.flush();
+		}
+		assertEquals(3, bulkIndexer.getConcurrency());
+		add(bulkIndexer, 1);
+		bulkIndexer.flush();
+		assertEquals(4, bulkIndexer.getConcurrency());
+		for (int i = 0; i < 6; i++) {
+			add(bulkIndexer, 1);
+			bulkIndexer.flush();
+		}
+		assertEquals(BULK_SIZE * 4, bulkIndexer.getBulkSize());
+		client.rejecting = true;
+		for (int i = 0; i < 4; i++) {
+			add(bulkIndexer, 1);
+			bulkIndexer.flush();
+		}
+		assertEquals(BULK_SIZE / 4, bulkIndexer.getBulkSize());
+		assertEquals(1, bulkIndexer.getConcurrency());
+		for (int i = 0; i < 4; i++) {
+			add(bulkIndexer, 1);
+			bulkIndexer.flush();
+		}
+		assertEquals(BULK_SIZE / 16, bulkIndexer.getBulkSize());
+		assertEquals(1, bulkIndexer.getConcurrency());
+		bulkIndexer.close();
+	}
+
+	@Test
+	public void testNotAdjustIfNotAdaptive() {
+		FakeClient client = new FakeClient((request, call) -> respond(request, i -> null));
+		client.rejecting = true;
+		BulkIndexer bulkIndexer = create(client, 500, false);
+		bulkIndexer.setMaxRetries(0);
+		add(bulkIndexer, 1);
+		bulkIndexer.close();
+		assertEquals(BULK_SIZE, bulkIndexer.getBulkSize());
+		assertEquals(4, bulkIndexer.getConcurrency());
+		assertEquals(1, bulkIndexer.getFailed());
+		assertEquals(1, bulkIndexer.getRejected());
+	}
+
+	private static BulkIndexer create(FakeClient client, int bulkActions, boolean adaptive) {
+		BulkIndexer bulkIndexer = new BulkIndexer(client, bulkActions, BULK_SIZE, 4);
+		bulkIndexer.setAdaptive(adaptive);
+		bulkIndexer.setMaxRetries(3);
+		bulkIndexer.setRetryBackoff(1);
+		bulkIndexer.setMaxRetryBackoff(10);
+		return bulkIndexer;
+	}
+
+	private static void add(BulkIndexer bulkIndexer, int count) {
+		for (int i = 0; i < count; i++)
+			bulkIndexer.add(new IndexRequest("test", "article", String.valueOf(i)).source("{\"name\":\"test\"}",
+					XContentType.JSON));
+	}
+
+	private static Exception rejected() {
+		return new EsRejectedExecutionException("rejected");
+	}
+
+	private static BulkResponse respond(BulkRequest request, ItemFailure failure) {
+		List<DocWriteRequest> requests = request.requests();
+		BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+		for (int i = 0; i < items.length; i++) {
+			DocWriteRequest r = requests.get(i);
+			Exception e = failure.of(i);
+			items[i] = e != null
+					? new BulkItemResponse(i, r.opType(), new BulkItemResponse.Failure(r.index(), r.type(), r.id(), e))
+					: new BulkItemResponse(i, r.opType(),
+							new IndexResponse(new ShardId(r.index(), "_na_", 0), r.type(), r.id(), 1, true));
+		}
+		return new BulkResponse(items, 1);
+	}
+
+	@FunctionalInterface
+	private interface ItemFailure {
+
+		Exception of(int item);
+
+	}
+
+	@FunctionalInterface
+	private interface Responder {
+
+		BulkResponse respond(BulkRequest request, int call) throws Exception;
+
+	}
+
+	private class FakeClient extends AbstractClient {
+
+		final List<BulkRequest> requests = new CopyOnWriteArrayList<>();
+
+		final Responder responder;
+
+		volatile boolean rejecting;
+
+		FakeClient(Responder responder) {
+			super(Settings.EMPTY, threadPool);
+			this.responder = responder;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+				Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+			BulkRequest bulkRequest = (BulkRequest) request;
+			int call = requests.size();
+			requests.add(bulkRequest);
+			BulkResponse response;
+			try {
+				response = rejecting ? respond(bulkRequest, i -> rejected()) : responder.respond(bulkRequest, call);
+			} catch (Exception e) {
+				listener.onFailure(e);
+				return;
+			}
+			listener.onResponse((Response) response);
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
@@ -0,0 +1,364 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.ironrhino.core.search.elasticsearch.annotations.Index;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableComponent;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableId;
+import org.ironrhino.core.search.elasticsearch.annotations.SearchableProperty;
+import org.ironrhino.core.util.AnnotationUtils;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+public class DocumentSerializerTest {
+
+	private final ObjectMapper objectMapper = IndexManagerImpl.createObjectMapper();
+
+	@Test
+	public void testFullDocument() throws Exception {
+		assertSameAsLegacy(sample());
+	}
+
+	@Test
+	public void testFullDocumentWithSortedMapEntries() throws Exception {
+		ObjectMapper sorted = IndexManagerImpl.createObjectMapper();
+		sorted.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+		assertSameAsLegacy(sample(), sorted);
+	}
+
+	@Test
+	public void testBlankValues() throws Exception {
+		Sample sample = new Sample();
+		sample.setId("blank");
+		sample.setName(" ");
+		sample.setTags(Collections.emptyList());
+		sample.setLabels(new String[0]);
+		sample.setOwner(new Owner());
+		assertSameAsLegacy(sample);
+		assertSameAsLegacy(new Sample());
+	}
+
+	@Test
+	public void testPartialDocument() throws Exception {
+		Sample sample = sample();
+		sample.setDescription(null);
+		Map<String, Object> document = objectMapper.readValue(new DocumentSerializer(Sample.class, objectMapper)
+				.serialize(sample, Arrays.asList("name", "description", "amount")), Map.class);
+		Map<String, Object> expected = new LinkedHashMap<>();
+		expected.put("name", sample.getName());
+		expected.put("description", null);
+		expected.put("amount", sample.getAmount().doubleValue());
+		assertEquals(expected, document);
+	}
+
+	@Test
+	public void testPropertyNames() {
+		assertEquals(
+				new LinkedHashSet<>(Arrays.asList("id", "name", "description", "count", "amount", "enabled", "status",
+						"createDate", "tags", "labels", "owner", "members", "attributes")),
+				new DocumentSerializer(Sample.class, objectMapper).getPropertyNames());
+	}
+
+	private void assertSameAsLegacy(Object entity) throws Exception {
+		assertSameAsLegacy(entity, objectMapper);
+	}
+
+	private void assertSameAsLegacy(Object entity, ObjectMapper mapper) throws Exception {
+		byte[] expected = legacy(entity, mapper);
+		byte[] actual = new DocumentSerializer(entity.getClass(), mapper).serialize(entity);
+		assertEquals(new String(expected, StandardCharsets.UTF_8), new String(actual, StandardCharsets.UTF_8));
+		assertArrayEquals(expected, actual);
+	}
+
+	// document built before DocumentSerializer was introduced
+	@SuppressWarnings("rawtypes")
+	private byte[] legacy(Object entity, ObjectMapper mapper) throws Exception {
+		Map<String, Object> map = AnnotationUtils.getAnnotatedPropertyNameAndValues(entity, SearchableId.class,
+				SearchableProperty.class, SearchableComponent.class);
+		Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
+		while (it.hasNext()) {
+			Object value = it.next().getValue();
+			if (value == null || value instanceof String && StringUtils.isBlank((String) value)
+					|| value instanceof Collection && ((Collection) value).isEmpty()
+					|| value.getClass().isArray() && ((Object[]) value).length == 0)
+				it.remove();
+		}
+		return mapper.writeValueAsString(map).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static Sample sample() {
+		Sample sample = new Sample();
+		sample.setId("42");
+		sample.setName("中文 \"quoted\" name");
+		sample.setDescription("line\nbreak");
+		sample.setCount(7);
+		sample.setAmount(new BigDecimal("12.50"));
+		sample.setEnabled(true);
+		sample.setStatus(Status.ACTIVE);
+		sample.setCreateDate(new Date(1500000000000L));
+		sample.setTags(Arrays.asList("a", "b", "c"));
+		sample.setLabels(new String[] { "x", "y" });
+		Owner owner = new Owner();
+		owner.setName("owner");
+		owner.setBirthday(new Date(0));
+		Address address = new Address();
+		address.setCity("city");
+		address.setZipCode(" ");
+		owner.setAddress(address);
+		sample.setOwner(owner);
+		Owner member = new Owner();
+		member.setName("member");
+		Set<Owner> members = new LinkedHashSet<>();
+		members.add(member);
+		members.add(owner);
+		sample.setMembers(members);
+		Map<String, Object> attributes = new LinkedHashMap<>();
+		attributes.put("k1", "v1");
+		attributes.put("k2", 2);
+		sample.setAttributes(attributes);
+		sample.setIgnored("ignored");
+		return sample;
+	}
+
+	public enum Status {
+		ACTIVE, DISABLED
+	}
+
+	public static class Sample {
+
+		@SearchableId
+		private String id;
+
+		@SearchableProperty
+		private String name;
+
+		@SearchableProperty(index = Index.NO)
+		private String description;
+
+		private int count;
+
+		@SearchableProperty
+		private BigDecimal amount;
+
+		@SearchableProperty
+		private boolean enabled;
+
+		@SearchableProperty
+		private Status status;
+
+		@SearchableProperty
+		private Date createDate;
+
+		@SearchableProperty
+		private List<String> tags;
+
+		@SearchableProperty
+		private String[] labels;
+
+		@SearchableComponent
+		private Owner owner;
+
+		@SearchableComponent
+		private Set<Owner> members;
+
+		@SearchableProperty
+		private Map<String, Object> attributes;
+
+		private String ignored;
+
+		public String getId() {
+			return id;
+		}
+
+		public void setId(String id) {
+			this.id = id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public void setDescription(String description) {
+			this.description = description;
+		}
+
+		@SearchableProperty
+		public int getCount() {
+			return count;
+		}
+
+		public void setCount(int count) {
+			this.count = count;
+		}
+
+		public BigDecimal getAmount() {
+			return amount;
+		}
+
+		public void setAmount(BigDecimal amount) {
+			this.amount = amount;
+		}
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public void setStatus(Status status) {
+			this.status = status;
+		}
+
+		public Date getCreateDate() {
+			return createDate;
+		}
+
+		public void setCreateDate(Date createDate) {
+			this.createDate = createDate;
+		}
+
+		public List<String> getTags() {
+			return tags;
+		}
+
+		public void setTags(List<String> tags) {
+			this.tags = tags;
+		}
+
+		public String[] getLabels() {
+			return labels;
+		}
+
+		public void setLabels(String[] labels) {
+			this.labels = labels;
+		}
+
+		public Owner getOwner() {
+			return owner;
+		}
+
+		public void setOwner(Owner owner) {
+			this.owner = owner;
+		}
+
+		public Set<Owner> getMembers() {
+			return members;
+		}
+
+		public void setMembers(Set<Owner> members) {
+			this.members = members;
+		}
+
+		public Map<String, Object> getAttributes() {
+			return attributes;
+		}
+
+		public void setAttributes(Map<String, Object> attributes) {
+			this.attributes = attributes;
+		}
+
+		public String getIgnored() {
+			return ignored;
+		}
+
+		public void setIgnored(String ignored) {
+			this.ignored = ignored;
+		}
+
+	}
+
+	public static class Owner {
+
+		@SearchableProperty
+		private String name;
+
+		@SearchableProperty
+		private Date birthday;
+
+		@SearchableComponent
+		private Address address;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public Date getBirthday() {
+			return birthday;
+		}
+
+		public void setBirthday(Date birthday) {
+			this.birthday = birthday;
+		}
+
+		public Address getAddress() {
+			return address;
+		}
+
+		public void setAddress(Address address) {
+			this.address = address;
+		}
+
+	}
+
+	public static class Address {
+
+		@SearchableProperty
+		private String city;
+
+		@SearchableProperty
+		private String zipCode;
+
+		public String getCity() {
+			return city;
+		}
+
+		public void setCity(String city) {
+			this.city = city;
+		}
+
+		public String getZipCode() {
+			return zipCode;
+		}
+
+		public void setZipCode(String zipCode) {
+			this.zipCode = zipCode;
+		}
+
+	}
+
+}
@@ -0,0 +1,41 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+
+import org.ironrhino.core.search.elasticsearch.annotations.SearchablePartition.Interval;
+import org.junit.Test;
+
+public class IndexManagerImplTest {
+
+	@Test
+	public void testPartitionOfInterval() {
+		LocalDate date = LocalDate.of(2020, 3, 5);
+		assertEquals("2020.03.05", IndexManagerImpl.partitionOf(date, Interval.DAY));
+		assertEquals("2020.03", IndexManagerImpl.partitionOf(date, Interval.MONTH));
+		assertEquals("2020", IndexManagerImpl.partitionOf(date, Interval.YEAR));
+	}
+
+	@Test
+	public void testPartitionOfValues() {
+		LocalDateTime datetime = LocalDateTime.of(2020, 12, 31, 23, 59, 59);
+		assertEquals("2020.12.31", IndexManagerImpl.partitionOf(datetime, Interval.DAY));
+		Date date = Date.from(datetime.atZone(ZoneId.systemDefault()).toInstant());
+		assertEquals("2020.12.31", IndexManagerImpl.partitionOf(date, Interval.DAY));
+		assertEquals("2020.12.31", IndexManagerImpl.partitionOf(date.getTime(), Interval.DAY));
+		assertEquals("2020.12", IndexManagerImpl.partitionOf("2020-12-31", Interval.MONTH));
+	}
+
+	@Test
+	public void testPartitionOfUndated() {
+		assertEquals("undated", IndexManagerImpl.partitionOf(null, Interval.DAY));
+		assertEquals("undated", IndexManagerImpl.partitionOf("", Interval.MONTH));
+		assertEquals("undated", IndexManagerImpl.partitionOf("not a date", Interval.YEAR));
+		assertEquals("undated", IndexManagerImpl.partitionOf(new Object(), Interval.DAY));
+	}
+
+}
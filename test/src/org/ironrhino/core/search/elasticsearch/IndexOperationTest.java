@@ -0,0 +1,127 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.ironrhino.core.search.elasticsearch.IndexOperation.Action;
+import org.junit.Test;
+
+public class IndexOperationTest {
+
+	@Test
+	public void testCoalesceWithoutPrevious() {
+		IndexOperation operation = index("{\"name\":\"a\"}", "r1", null);
+		assertSame(operation, operation.coalesce(null));
+	}
+
+	@Test
+	public void testCoalesceIndexAfterIndex() {
+		IndexOperation result = index("{\"name\":\"b\"}", "r1", null).coalesce(index("{\"name\":\"a\"}", "r1", null));
+		assertEquals(Action.INDEX, result.getAction());
+		assertEquals("b", toMap(result).get("name"));
+		assertFalse(result.isRelocated());
+	}
+
+	@Test
+	public void testCoalesceUpdateAfterIndex() {
+		IndexOperation result = update("{\"name\":\"b\",\"count\":2}", "r1", null)
+				.coalesce(index("{\"name\":\"a\",\"tag\":\"t\"}", "r1", null));
+		assertEquals(Action.INDEX, result.getAction());
+		Map<String, Object> document = toMap(result);
+		assertEquals("b", document.get("name"));
+		assertEquals(2, document.get("count"));
+		assertEquals("t", document.get("tag"));
+	}
+
+	@Test
+	public void testCoalesceUpdateAfterDelete() {
+		IndexOperation update = update("{\"name\":\"b\"}", "r1", null);
+		IndexOperation result = update.coalesce(delete("r1", null));
+		assertEquals(Action.UPDATE, result.getAction());
+		assertEquals("b", toMap(result).get("name"));
+		assertFalse(result.isRelocated());
+	}
+
+	@Test
+	public void testCoalesceDeleteAfterIndex() {
+		IndexOperation result = delete("r1", "2020.01").coalesce(index("{\"name\":\"a\"}", "r1", "2020.01"));
+		assertEquals(Action.DELETE, result.getAction());
+		assertNull(result.getSource());
+		assertFalse(result.isRelocated());
+	}
+
+	@Test
+	public void testCoalesceRelocation() {
+		IndexOperation result = index("{\"name\":\"a\"}", "r2", "2020.02")
+				.coalesce(index("{\"name\":\"a\"}", "r1", "2020.01"));
+		assertTrue(result.isRelocated());
+		assertEquals("r2", result.getRouting());
+		assertEquals("2020.02", result.getPartition());
+		assertEquals("r1", result.getFormerRouting());
+		assertEquals("2020.01", result.getFormerPartition());
+	}
+
+	@Test
+	public void testCoalesceKeepsOldestFormerLocation() {
+		IndexOperation previous = index("{\"name\":\"a\"}", "r1", null).relocateFrom("r0", null);
+		IndexOperation result = index("{\"name\":\"a\"}", "r2", null).coalesce(previous);
+		assertTrue(result.isRelocated());
+		assertEquals("r2", result.getRouting());
+		assertEquals("r0", result.getFormerRouting());
+		result = index("{\"name\":\"a\"}", "r2", null).relocateFrom("r1", null).coalesce(previous);
+		assertEquals("r0", result.getFormerRouting());
+	}
+
+	@Test
+	public void testCoalesceMovedBack() {
+		IndexOperation previous = index("{\"name\":\"a\"}", "r1", null).relocateFrom("r0", null);
+		IndexOperation result = index("{\"name\":\"a\"}", "r0", null).coalesce(previous);
+		assertFalse(result.isRelocated());
+		assertNull(result.getFormerRouting());
+	}
+
+	@Test
+	public void testCoalesceUpdateAfterRelocatedIndex() {
+		IndexOperation previous = index("{\"name\":\"a\"}", "r1", "2020.02").relocateFrom("r0", "2020.01");
+		IndexOperation result = update("{\"name\":\"b\"}", "r1", "2020.02").coalesce(previous);
+		assertEquals(Action.INDEX, result.getAction());
+		assertEquals("b", toMap(result).get("name"));
+		assertTrue(result.isRelocated());
+		assertEquals("r0", result.getFormerRouting());
+		assertEquals("2020.01", result.getFormerPartition());
+	}
+
+	@Test
+	public void testRelocateFromSameLocation() {
+		IndexOperation operation = index("{\"name\":\"a\"}", "r1", "2020.01").relocateFrom("r1", "2020.01");
+		assertFalse(operation.isRelocated());
+	}
+
+	private static IndexOperation index(String source, String routing, String partition) {
+		return new IndexOperation(Action.INDEX, "article", "1", source.getBytes(StandardCharsets.UTF_8), routing,
+				partition);
+	}
+
+	private static IndexOperation update(String source, String routing, String partition) {
+		return new IndexOperation(Action.UPDATE, "article", "1", source.getBytes(StandardCharsets.UTF_8), routing,
+				partition);
+	}
+
+	private static IndexOperation delete(String routing, String partition) {
+		return new IndexOperation(Action.DELETE, "article", "1", null, routing, partition);
+	}
+
+	private static Map<String, Object> toMap(IndexOperation operation) {
+		return XContentHelper.convertToMap(new BytesArray(operation.getSource()), true, XContentType.JSON).v2();
+	}
+
+}
@@ -0,0 +1,221 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.elasticsearch.action.support.PlainListenableActionFuture;
+import org.ironrhino.core.search.elasticsearch.IndexOperation.Action;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.ReflectionUtils;
+
+public class IndexOutboxTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private IndexOutbox outbox;
+
+	@After
+	public void destroy() {
+		if (outbox != null)
+			outbox.destroy();
+	}
+
+	@Test
+	public void testEncodeAndDecode() {
+		assertDecoded(new IndexOperation(Action.INDEX, "article", "1",
+				"{\"name\":\"a\"}".getBytes(StandardCharsets.UTF_8), "r1", "2020.01"));
+		assertDecoded(new IndexOperation(Action.DELETE, "article", "1", null));
+		assertDecoded(new IndexOperation(Action.UPDATE, "文章", "标识",
+				"{\"name\":\"名\"}".getBytes(StandardCharsets.UTF_8), null, "undated"));
+		assertDecoded(new IndexOperation(Action.INDEX, "article", "1", "{}".getBytes(StandardCharsets.UTF_8), "r2",
+				"2020.02").relocateFrom("r1", "2020.01"));
+		assertDecoded(new IndexOperation(Action.DELETE, "article", "1", null, null, "2020.02").relocateFrom(null,
+				"undated"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeUnsupportedVersion() {
+		byte[] payload = IndexOutbox.encode(new IndexOperation(Action.DELETE, "article", "1", null));
+		payload[0] = Byte.MAX_VALUE;
+		IndexOutbox.decode(payload);
+	}
+
+	@Test
+	public void testRecover() throws Exception {
+		outbox = create();
+		IndexOperation relocated = new IndexOperation(Action.INDEX, "article", "1",
+				"{\"name\":\"a\"}".getBytes(StandardCharsets.UTF_8), "r2", null).relocateFrom("r1", null);
+		IndexOperation update = new IndexOperation(Action.UPDATE, "article", "2",
+				"{\"name\":\"b\"}".getBytes(StandardCharsets.UTF_8));
+		IndexOperation delete = new IndexOperation(Action.DELETE, "article", "3", null);
+		long h1 = outbox.append(relocated);
+		long h2 = outbox.append(update);
+		long h3 = outbox.append(delete);
+		outbox.ack(h2);
+		assertEquals(2, outbox.getBacklog());
+		outbox.destroy();
+
+		outbox = create();
+		assertEquals(2, outbox.getBacklog());
+		assertEquals(relocated.toString(), outbox.read(h1).toString());
+		assertTrue(outbox.read(h1).isRelocated());
+		assertEquals("r1", outbox.read(h1).getFormerRouting());
+		assertEquals(delete.toString(), outbox.read(h3).toString());
+		long h4 = outbox.append(update);
+		assertNotEquals(h3, h4);
+		assertTrue(h4 > h3);
+		assertEquals(3, outbox.getBacklog());
+	}
+
+	@Test
+	public void testRecoverDeletesAcknowledgedSegments() throws Exception {
+		outbox = create();
+		byte[] source = new byte[400];
+		Arrays.fill(source, (byte) 'a');
+		long handle;
+		int i = 0;
+		// records acknowledged while their segment is current are kept until recovery
+		while ((handle = outbox
+				.append(new IndexOperation(Action.INDEX, "article", String.valueOf(i++), source))) >>> 32 == 0)
+			outbox.ack(handle);
+		assertEquals(2, folder.getRoot().listFiles().length);
+		outbox.destroy();
+
+		outbox = create();
+		assertEquals(1, outbox.getBacklog());
+		assertArrayEquals(new File[] { new File(folder.getRoot(), "outbox-0000000001.log") },
+				folder.getRoot().listFiles());
+		assertEquals(String.valueOf(i - 1), outbox.read(handle).getId());
+	}
+
+	@Test
+	public void testAcknowledgedRecordSupersedesOlderRecords() throws Exception {
+		outbox = create();
+		List<Object> executed = new CopyOnWriteArrayList<>();
+		set(outbox, "indexManager", indexManager(executed));
+		outbox.append(index("1", "a"));
+		long handle = outbox.append(index("1", "b"));
+		outbox.append(new IndexOperation(Action.UPDATE, "article", "1",
+				"{\"name\":\"c\"}".getBytes(StandardCharsets.UTF_8)));
+		outbox.ack(handle);
+		assertEquals(2, outbox.getBacklog());
+		outbox.replay();
+		assertEquals(1, outbox.getBacklog());
+		assertTrue(executed.isEmpty());
+	}
+
+	@Test
+	public void testAcknowledgedRecordSupersedesOlderRecordsAfterRecovery() throws Exception {
+		outbox = create();
+		outbox.append(index("1", "a"));
+		outbox.ack(outbox.append(new IndexOperation(Action.DELETE, "article", "1", null)));
+		outbox.append(index("2", "a"));
+		outbox.destroy();
+
+		outbox = create();
+		List<Object> executed = new CopyOnWriteArrayList<>();
+		set(outbox, "indexManager", indexManager(executed));
+		assertEquals(2, outbox.getBacklog());
+		outbox.replay();
+		assertEquals(1, executed.size());
+		assertEquals(Arrays.asList("INDEX article#2"), executed.get(0));
+	}
+
+	@Test
+	public void testRelocatedRecordIsNotSuperseded() throws Exception {
+		outbox = create();
+		List<Object> executed = new CopyOnWriteArrayList<>();
+		set(outbox, "indexManager", indexManager(executed));
+		outbox.append(new IndexOperation(Action.INDEX, "article", "1", "{}".getBytes(StandardCharsets.UTF_8), "r2",
+				null).relocateFrom("r1", null));
+		outbox.ack(outbox.append(index("1", "b")));
+		outbox.replay();
+		assertEquals(1, outbox.getBacklog());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		outbox = new IndexOutbox();
+		set(outbox, "enabled", false);
+		outbox.init();
+		assertEquals(IndexOutbox.NONE, outbox.append(new IndexOperation(Action.DELETE, "article", "1", null)));
+		assertEquals(0, outbox.getBacklog());
+		assertFalse(outbox.isEnabled());
+	}
+
+	private IndexOutbox create() throws Exception {
+		IndexOutbox instance = new IndexOutbox();
+		set(instance, "logger", LoggerFactory.getLogger(IndexOutbox.class));
+		set(instance, "searchMetrics", new SearchMetrics());
+		set(instance, "enabled", true);
+		set(instance, "directory", folder.getRoot().getPath());
+		set(instance, "segmentSize", "2kb");
+		set(instance, "replayInterval", 3600000L);
+		set(instance, "retryDelay", 10000L);
+		set(instance, "maxRetryDelay", 600000L);
+		set(instance, "replayBatchSize", 500);
+		instance.init();
+		return instance;
+	}
+
+	private static IndexOperation index(String id, String name) {
+		return new IndexOperation(Action.INDEX, "article", id,
+				("{\"name\":\"" + name + "\"}").getBytes(StandardCharsets.UTF_8));
+	}
+
+	// records operations of execute, responses are never delivered so nothing is acknowledged
+	private static IndexManager indexManager(List<Object> executed) {
+		return (IndexManager) Proxy.newProxyInstance(IndexOutboxTest.class.getClassLoader(),
+				new Class<?>[] { IndexManager.class }, (proxy, method, args) -> {
+					if (!method.getName().equals("execute"))
+						throw new UnsupportedOperationException(method.getName());
+					List<String> operations = new ArrayList<>();
+					for (Object operation : (Collection<?>) args[0])
+						operations.add(operation.toString());
+					executed.add(operations);
+					return new PlainListenableActionFuture<>(null);
+				});
+	}
+
+	private static void assertDecoded(IndexOperation operation) {
+		IndexOperation decoded = IndexOutbox.decode(IndexOutbox.encode(operation));
+		assertEquals(operation.getAction(), decoded.getAction());
+		assertEquals(operation.getType(), decoded.getType());
+		assertEquals(operation.getId(), decoded.getId());
+		if (operation.getSource() == null)
+			assertNull(decoded.getSource());
+		else
+			assertArrayEquals(operation.getSource(), decoded.getSource());
+		assertEquals(operation.getRouting(), decoded.getRouting());
+		assertEquals(operation.getPartition(), decoded.getPartition());
+		assertEquals(operation.isRelocated(), decoded.isRelocated());
+		assertEquals(operation.getFormerRouting(), decoded.getFormerRouting());
+		assertEquals(operation.getFormerPartition(), decoded.getFormerPartition());
+	}
+
+	private static void set(Object target, String name, Object value) {
+		Field field = ReflectionUtils.findField(target.getClass(), name);
+		ReflectionUtils.makeAccessible(field);
+		ReflectionUtils.setField(field, target, value);
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.ironrhino.core.search.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.lang.reflect.Field;
+
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.util.ReflectionUtils;
+
+public class SearchResultCacheTest {
+
+	private final SearchResultCache cache = create(0);
+
+	@After
+	public void destroy() {
+		cache.destroy();
+	}
+
+	@Test
+	public void testKeyIgnoresOrderOfTypesAndRouting() {
+		ElasticSearchCriteria criteria = criteria("name:test", "b", "a");
+		criteria.setRouting("r2", "r1");
+		ElasticSearchCriteria reordered = criteria("name:test", "a", "b");
+		reordered.setRouting("r1", "r2");
+		assertEquals(cache.key(criteria, 0, 10), cache.key(reordered, 0, 10));
+		reordered.setRouting("r1");
+		assertNotEquals(cache.key(criteria, 0, 10), cache.key(reordered, 0, 10));
+	}
+
+	@Test
+	public void testKeyDistinguishesRequests() {
+		ElasticSearchCriteria criteria = criteria("name:test", "article");
+		String key = cache.key(criteria, 0, 10);
+		assertNotEquals(key, cache.key(criteria("  name:test ", "article"), 0, 10));
+		assertNotEquals(key, cache.key(criteria, 10, 10));
+		assertNotEquals(key, cache.key(criteria, 0, 20));
+		assertNotEquals(key, cache.key(criteria("name:other", "article"), 0, 10));
+		assertNotEquals(key, cache.key(criteria("name:test", "comment"), 0, 10));
+		ElasticSearchCriteria sorted = criteria("name:test", "article");
+		sorted.addSort("createDate", true);
+		assertNotEquals(key, cache.key(sorted, 0, 10));
+		ElasticSearchCriteria filtered = criteria("name:test", "article");
+		filtered.setQueryBuilder(QueryBuilders.termQuery("tag", "a"));
+		assertNotEquals(key, cache.key(filtered, 0, 10));
+		ElasticSearchCriteria projected = criteria("name:test", "article");
+		projected.setIncludes("name");
+		assertNotEquals(key, cache.key(projected, 0, 10));
+	}
+
+	@Test
+	public void testKeyChangesAfterInvalidation() {
+		String article = cache.key(criteria("name:test", "article"), 0, 10);
+		String comment = cache.key(criteria("name:test", "comment"), 0, 10);
+		String all = cache.key(criteria("name:test"), 0, 10);
+		cache.invalidate("article");
+		assertNotEquals(article, cache.key(criteria("name:test", "article"), 0, 10));
+		assertEquals(comment, cache.key(criteria("name:test", "comment"), 0, 10));
+		assertNotEquals(all, cache.key(criteria("name:test"), 0, 10));
+	}
+
+	@Test
+	public void testKeyChangesAgainAfterRefresh() throws Exception {
+		SearchResultCache delayed = create(50);
+		try {
+			delayed.invalidate("article");
+			String key = delayed.key(criteria("name:test", "article"), 0, 10);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (key.equals(delayed.key(criteria("name:test", "article"), 0, 10))
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertNotEquals(key, delayed.key(criteria("name:test", "article"), 0, 10));
+		} finally {
+			delayed.destroy();
+		}
+	}
+
+	private static ElasticSearchCriteria criteria(String query, String... types) {
+		ElasticSearchCriteria criteria = new ElasticSearchCriteria();
+		criteria.setQuery(query);
+		if (types.length > 0)
+			criteria.setTypes(types);
+		return criteria;
+	}
+
+	private static SearchResultCache create(long refreshInterval) {
+		SearchResultCache cache = new SearchResultCache();
+		set(cache, "searchMetrics", new SearchMetrics());
+		set(cache, "enabled", true);
+		set(cache, "maxSize", "1mb");
+		set(cache, "eviction", "lru");
+		set(cache, "refreshInterval", refreshInterval);
+		cache.init();
+		return cache;
+	}
+
+	private static void set(Object target, String name, Object value) {
+		Field field = ReflectionUtils.findField(target.getClass(), name);
+		ReflectionUtils.makeAccessible(field);
+		ReflectionUtils.setField(field, target, value);
+	}
+
+}